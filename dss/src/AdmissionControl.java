@@ -0,0 +1,182 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Admission control for dstore transfers: a cap on concurrent transfers, a budget for bytes
+ * buffered in flight, and separate bandwidth shapers for client traffic and background traffic
+ * (repair and re-replication). Crossing into or out of saturation is reported to a listener so
+ * the controller can steer placement away from a busy dstore.
+ *
+ * <p>Limits come from system properties, all optional:
+ *
+ * <ul>
+ *   <li>dss.maxTransfers - concurrent STORE/LOAD_DATA transfers (default 64)
+ *   <li>dss.maxBufferBytes - bytes buffered by in-flight transfers (default 256 MiB)
+ *   <li>dss.clientBandwidth - client bytes per second, 0 for unlimited (default 0)
+ *   <li>dss.backgroundBandwidth - background bytes per second, 0 for unlimited (default 0)
+ * </ul>
+ */
+public class AdmissionControl {
+  public enum TrafficClass {
+    CLIENT,
+    BACKGROUND
+  }
+
+  private final int maxTransfers;
+  private final long maxBufferBytes;
+  private final Semaphore transfers;
+  private final TokenBucket clientBandwidth;
+  private final TokenBucket backgroundBandwidth;
+  private final Consumer<Boolean> saturationListener;
+  private long bufferedBytes;
+  private boolean saturated;
+  private boolean reported;
+  private boolean reporting;
+
+  /**
+   * @param maxTransfers - concurrent transfers allowed
+   * @param maxBufferBytes - bytes that may be buffered in flight
+   * @param clientRate - client bytes per second, 0 for unlimited
+   * @param backgroundRate - background bytes per second, 0 for unlimited
+   * @param saturationListener - called with true on becoming saturated, false on recovering
+   */
+  public AdmissionControl(
+      int maxTransfers,
+      long maxBufferBytes,
+      long clientRate,
+      long backgroundRate,
+      Consumer<Boolean> saturationListener) {
+    this.maxTransfers = maxTransfers;
+    this.maxBufferBytes = maxBufferBytes;
+    this.transfers = new Semaphore(maxTransfers, true);
+    this.clientBandwidth = new TokenBucket(clientRate);
+    this.backgroundBandwidth = new TokenBucket(backgroundRate);
+    this.saturationListener = saturationListener;
+  }
+
+  public static AdmissionControl fromSystemProperties(Consumer<Boolean> saturationListener) {
+    return new AdmissionControl(
+        Integer.getInteger("dss.maxTransfers", 64),
+        Long.getLong("dss.maxBufferBytes", 256L << 20),
+        Long.getLong("dss.clientBandwidth", 0L),
+        Long.getLong("dss.backgroundBandwidth", 0L),
+        saturationListener);
+  }
+
+  /**
+   * Admit a transfer, waiting up to the timeout for a transfer slot and buffer budget. A single
+   * transfer larger than the whole budget is admitted once nothing else is buffered.
+   *
+   * @param bytes - bytes the transfer will buffer
+   * @param timeout - max wait in milliseconds
+   * @return true if admitted, in which case {@link #release(long)} must follow
+   */
+  public boolean admit(long bytes, long timeout) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    if (!transfers.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+      updateSaturation(true);
+      return false;
+    }
+    long charge = Math.min(bytes, maxBufferBytes);
+    boolean admitted = true;
+    try {
+      synchronized (this) {
+        while (bufferedBytes + charge > maxBufferBytes) {
+          long waitNanos = deadline - System.nanoTime();
+          if (waitNanos <= 0) {
+            admitted = false;
+            break;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+        }
+        if (admitted) bufferedBytes += charge;
+      }
+    } catch (InterruptedException e) {
+      transfers.release();
+      throw e;
+    }
+    if (!admitted) transfers.release();
+    updateSaturation(!admitted);
+    return admitted;
+  }
+
+  /**
+   * Hand back what {@link #admit(long, long)} took
+   *
+   * @param bytes - same byte count passed to admit
+   */
+  public void release(long bytes) {
+    synchronized (this) {
+      bufferedBytes -= Math.min(bytes, maxBufferBytes);
+      notifyAll();
+    }
+    transfers.release();
+    updateSaturation(false);
+  }
+
+  /**
+   * Block until the bandwidth shaper of the traffic class allows the bytes through
+   *
+   * @param traffic - client or background
+   * @param bytes - bytes about to be transferred
+   */
+  public void throttle(TrafficClass traffic, long bytes) throws InterruptedException {
+    if (traffic == TrafficClass.CLIENT) {
+      clientBandwidth.acquire(bytes);
+    } else {
+      backgroundBandwidth.acquire(bytes);
+    }
+  }
+
+  private void updateSaturation(boolean rejected) {
+    if (recordSaturation(rejected)) report();
+  }
+
+  /**
+   * @return true if the caller should report the transition it recorded
+   */
+  private synchronized boolean recordSaturation(boolean rejected) {
+    int active = maxTransfers - transfers.availablePermits();
+    boolean next;
+    if (rejected || active >= maxTransfers || bufferedBytes >= maxBufferBytes) {
+      next = true;
+    } else if (active <= maxTransfers / 2 && bufferedBytes <= maxBufferBytes / 2) {
+      // hysteresis, so a dstore hovering at the limit does not flap
+      next = false;
+    } else {
+      next = saturated;
+    }
+    if (saturated == next) return false;
+    saturated = next;
+    if (reporting) return false;
+    reporting = true;
+    return true;
+  }
+
+  /**
+   * Tell the listener about transitions, outside the lock since it may block. Only one thread
+   * reports at a time and it keeps going until the listener has seen the latest state, so the
+   * controller never sees transitions out of order.
+   */
+  private void report() {
+    while (true) {
+      boolean state;
+      synchronized (this) {
+        if (reported == saturated) {
+          reporting = false;
+          return;
+        }
+        state = reported = saturated;
+      }
+      try {
+        saturationListener.accept(state);
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          reporting = false;
+        }
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,291 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * On-disk format of files a dstore keeps compressed. A fixed header records the codec and the
+ * original size, followed by the data cut into blocks of {@link #BLOCK_SIZE} original bytes that
+ * are deflated independently, so a range can be served by skipping whole blocks without inflating
+ * them. Each block is prefixed by its stored length; a block that does not shrink is kept as it
+ * is and flagged in the prefix.
+ *
+ * <p>Whether a file is compressed is never read from its content, since a plain file may start
+ * with anything: the codec and original size are kept in a user attribute of the file, {@value
+ * #CODEC_ATTRIBUTE}, set when it is created. Files without the attribute are plain. Hard links
+ * share the attribute with the file they link to.
+ *
+ * <pre>
+ *   header: "DSSZ" version:u8 codec:u8 originalSize:i64 crc32:i32
+ *   block:  (raw flag << 31 | storedLength):i32 bytes
+ * </pre>
+ */
+public final class CompressedFile {
+  public static final int BLOCK_SIZE = 64 * 1024;
+  public static final int HEADER_LENGTH = 18;
+  public static final byte CODEC_DEFLATE = 1;
+  public static final String CODEC_ATTRIBUTE = "dss.codec";
+  private static final String DEFLATE = "deflate";
+  private static final byte[] MAGIC = {'D', 'S', 'S', 'Z'};
+  private static final byte VERSION = 1;
+  private static final int RAW_BLOCK = 1 << 31;
+
+  private CompressedFile() {}
+
+  /**
+   * Record that a new file is about to be written compressed, before the first byte is
+   *
+   * @param file - newly created file
+   * @param originalSize - bytes that will be written to the {@link Writer}
+   * @return false if the file system cannot hold the attribute, so the file must stay plain
+   */
+  public static boolean mark(File file, long originalSize) {
+    UserDefinedFileAttributeView view = attributes(file);
+    if (view == null) return false;
+    try {
+      view.write(
+          CODEC_ATTRIBUTE, StandardCharsets.US_ASCII.encode(DEFLATE + " " + originalSize));
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param file - stored file
+   * @return original size of a compressed file, or -1 if the file is stored plain
+   */
+  public static long originalSize(File file) throws IOException {
+    UserDefinedFileAttributeView view = attributes(file);
+    if (view == null || !view.list().contains(CODEC_ATTRIBUTE)) return -1;
+    ByteBuffer value = ByteBuffer.allocate(view.size(CODEC_ATTRIBUTE));
+    view.read(CODEC_ATTRIBUTE, value);
+    value.flip();
+    String[] codec = StandardCharsets.US_ASCII.decode(value).toString().split(" ");
+    if (codec.length != 2 || !codec[0].equals(DEFLATE)) {
+      throw new IOException(file + ": unknown codec " + String.join(" ", codec));
+    }
+    try {
+      return Long.parseLong(codec[1]);
+    } catch (NumberFormatException e) {
+      throw new IOException(file + ": corrupt codec attribute", e);
+    }
+  }
+
+  private static UserDefinedFileAttributeView attributes(File file) {
+    return Files.getFileAttributeView(file.toPath(), UserDefinedFileAttributeView.class);
+  }
+
+  /**
+   * Open a compressed file for reading its original content
+   *
+   * @param file - compressed file
+   * @param offset - first original byte to read
+   * @return stream of original bytes from the offset to the end
+   */
+  public static InputStream open(File file, long offset) throws IOException {
+    return new Reader(file, offset);
+  }
+
+  /**
+   * Decode the blocks of a compressed file as sent over the wire
+   *
+   * @param in - block stream, positioned after the header
+   * @param target - receives the original content, sized to the original size
+   */
+  public static void decode(InputStream in, byte[] target) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    Inflater inflater = new Inflater();
+    try {
+      byte[] stored = new byte[BLOCK_SIZE];
+      int filled = 0;
+      while (filled < target.length) {
+        int expected = Math.min(BLOCK_SIZE, target.length - filled);
+        readBlock(data, inflater, stored, target, filled, expected);
+        filled += expected;
+      }
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Read one block and inflate it into place
+   *
+   * @param in - positioned at a block prefix
+   * @param inflater - reusable inflater
+   * @param stored - scratch space of at least one block
+   * @param target - destination
+   * @param offset - where in the destination the block goes
+   * @param expected - original length of the block
+   */
+  private static void readBlock(
+      DataInput in, Inflater inflater, byte[] stored, byte[] target, int offset, int expected)
+      throws IOException {
+    int prefix = in.readInt();
+    int length = prefix & ~RAW_BLOCK;
+    if (length > BLOCK_SIZE) throw new IOException("Corrupt block of " + length + " bytes");
+    if ((prefix & RAW_BLOCK) != 0) {
+      if (length != expected) throw new IOException("Corrupt raw block of " + length + " bytes");
+      in.readFully(target, offset, length);
+      return;
+    }
+    in.readFully(stored, 0, length);
+    inflater.reset();
+    inflater.setInput(stored, 0, length);
+    try {
+      int n = 0;
+      while (n < expected && !inflater.finished()) {
+        int inflated = inflater.inflate(target, offset + n, expected - n);
+        if (inflated == 0 && inflater.needsInput()) break;
+        n += inflated;
+      }
+      if (n != expected) throw new IOException("Block inflated to " + n + " of " + expected);
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt block", e);
+    }
+  }
+
+  /** Writes the header and compresses everything written to it, block by block */
+  public static final class Writer extends OutputStream {
+    private final DataOutputStream out;
+    private final Deflater deflater;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] compressed = new byte[BLOCK_SIZE];
+    private int filled;
+
+    /**
+     * @param out - destination, closed with the writer
+     * @param originalSize - bytes that will be written
+     * @param level - deflate level, 1 (fastest) to 9 (smallest)
+     */
+    public Writer(OutputStream out, long originalSize, int level) throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(out, BLOCK_SIZE + 4));
+      this.deflater = new Deflater(level);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      header.put(MAGIC).put(VERSION).put(CODEC_DEFLATE).putLong(originalSize);
+      CRC32 crc = new CRC32();
+      crc.update(header.array(), 0, HEADER_LENGTH - 4);
+      header.putInt((int) crc.getValue());
+      this.out.write(header.array());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      block[filled++] = (byte) b;
+      if (filled == BLOCK_SIZE) flushBlock();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int n = Math.min(len, BLOCK_SIZE - filled);
+        System.arraycopy(b, off, block, filled, n);
+        filled += n;
+        off += n;
+        len -= n;
+        if (filled == BLOCK_SIZE) flushBlock();
+      }
+    }
+
+    private void flushBlock() throws IOException {
+      deflater.reset();
+      deflater.setInput(block, 0, filled);
+      deflater.finish();
+      int n = 0;
+      // output that fills a whole block did not shrink, so it is never worth keeping
+      while (!deflater.finished() && n < compressed.length) {
+        n += deflater.deflate(compressed, n, compressed.length - n);
+      }
+      if (deflater.finished() && n < filled) {
+        out.writeInt(n);
+        out.write(compressed, 0, n);
+      } else {
+        out.writeInt(RAW_BLOCK | filled);
+        out.write(block, 0, filled);
+      }
+      filled = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (filled > 0) flushBlock();
+        out.close();
+      } finally {
+        deflater.end();
+      }
+    }
+  }
+
+  /** Original content of a compressed file, starting at any offset */
+  private static final class Reader extends InputStream {
+    private final RandomAccessFile file;
+    private final Inflater inflater = new Inflater();
+    private final byte[] stored = new byte[BLOCK_SIZE];
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private long remaining;
+    private int position;
+    private int limit;
+
+    private Reader(File source, long offset) throws IOException {
+      long size = originalSize(source);
+      if (size < 0) throw new IOException(source + " is not a compressed file");
+      this.file = new RandomAccessFile(source, "r");
+      try {
+        file.seek(HEADER_LENGTH);
+        offset = Math.max(0, Math.min(offset, size));
+        // whole blocks before the offset are skipped by their prefixes, never inflated
+        for (long skip = offset / BLOCK_SIZE; skip > 0; skip--) {
+          int length = file.readInt() & ~RAW_BLOCK;
+          file.seek(file.getFilePointer() + length);
+        }
+        remaining = size - offset / BLOCK_SIZE * BLOCK_SIZE;
+        if (remaining > 0) {
+          nextBlock();
+          position = (int) (offset % BLOCK_SIZE);
+        }
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    private void nextBlock() throws IOException {
+      limit = (int) Math.min(BLOCK_SIZE, remaining);
+      readBlock(file, inflater, stored, block, 0, limit);
+      remaining -= limit;
+      position = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (position == limit) {
+        if (remaining == 0) return -1;
+        nextBlock();
+      }
+      int n = Math.min(len, limit - position);
+      System.arraycopy(block, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inflater.end();
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,123 @@
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Controller-side content-addressed index: content hash to the dstores holding that content, and
+ * the files sharing it. Files with the same content are hard links to one copy on each dstore, so
+ * a STORE of known content only needs the dstores to add a link, and the space is reclaimed by
+ * the dstores' file system once the last file referencing it is removed.
+ */
+public class ContentIndex {
+  private final HashMap<String, Entry> byHash = new HashMap<>();
+  private final HashMap<String, String> hashOfFile = new HashMap<>();
+
+  /** Content known to the cluster */
+  private static final class Entry {
+    private final long size;
+    private final String ports;
+    private final Set<String> files = new LinkedHashSet<>();
+
+    private Entry(long size, String ports) {
+      this.size = size;
+      this.ports = ports;
+    }
+  }
+
+  /** What a new file needs to link to known content, taken at one point in time */
+  public static final class Match {
+    private final long size;
+    private final String ports;
+    private final String source;
+
+    private Match(long size, String ports, String source) {
+      this.size = size;
+      this.ports = ports;
+      this.source = source;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return space separated dstore ports holding the content
+     */
+    public String getPorts() {
+      return ports;
+    }
+
+    /**
+     * @return a stored file name the dstores can link new files to
+     */
+    public String getSource() {
+      return source;
+    }
+  }
+
+  /**
+   * @param hash - content hash
+   * @return the content's size, dstores and a file to link to, or null if unknown
+   */
+  public synchronized Match lookup(String hash) {
+    Entry entry = byHash.get(hash);
+    if (entry == null || entry.files.isEmpty()) return null;
+    return new Match(entry.size, entry.ports, entry.files.iterator().next());
+  }
+
+  /**
+   * Record a stored file. New content gets an entry; a file linked to known content adds a
+   * reference. Content already indexed under different dstores is left unindexed, since its
+   * copies are not links of the indexed one.
+   *
+   * @param hash - content hash
+   * @param file - stored file name
+   * @param size - content size
+   * @param ports - space separated dstores holding the file
+   * @return true if the file is now indexed
+   */
+  public synchronized boolean add(String hash, String file, long size, String ports) {
+    Entry entry = byHash.get(hash);
+    if (entry == null) {
+      entry = new Entry(size, ports);
+      byHash.put(hash, entry);
+    } else if (!entry.ports.equals(ports)) {
+      return false;
+    }
+    entry.files.add(file);
+    hashOfFile.put(file, hash);
+    return true;
+  }
+
+  /**
+   * @param file - stored file name
+   * @return content hash the file is indexed under, or null
+   */
+  public synchronized String hashOf(String file) {
+    return hashOfFile.get(file);
+  }
+
+  /** Forget all content, e.g. before the index is rebuilt from a snapshot */
+  public synchronized void clear() {
+    byHash.clear();
+    hashOfFile.clear();
+  }
+
+  /**
+   * Drop a file's reference to its content
+   *
+   * @param file - removed file name
+   * @return references left, 0 when the content is gone from the cluster
+   */
+  public synchronized int release(String file) {
+    String hash = hashOfFile.remove(file);
+    if (hash == null) return 0;
+    Entry entry = byHash.get(hash);
+    entry.files.remove(file);
+    if (entry.files.isEmpty()) {
+      byHash.remove(hash);
+      return 0;
+    }
+    return entry.files.size();
+  }
+}
@@ -1,35 +1,77 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class Controller {
+  // bounds the files a dstore lists in one anti-entropy round
+  private static final int DIGEST_BUCKETS_PER_ROUND = 64;
+  // bounds the files written to a dstore in one STORE_BATCH
+  private static final int INLINE_BATCH_FILES = 256;
   private final int replicFactor;
   private final int timeout;
   private final int rebalance;
   private final ScreenLogger log;
-  private final HashMap<String, Socket> storeIndex;
-  private final Object storeIndexLock;
-  private final HashMap<String, String> fileIndex;
-  private final Object fileIndexLock;
-  private final HashMap<String, Socket> fileClientIndex;
-  private final Object fileClientLock;
-  private final HashMap<String, String> fileStoreLookup;
-  private final Object fileStoreLock;
-  private final HashMap<String, HashMap<Integer, String>> fileLoadLookup;
-  private final Object fileLoadLock;
+  private final ConcurrentHashMap<String, Socket> storeIndex;
+  private final ConcurrentHashMap<Socket, String> storePorts;
+  private final ConcurrentHashMap<String, String> fileIndex;
+  private final ConcurrentHashMap<String, Socket> fileClientIndex;
+  private final ConcurrentHashMap<String, String> fileStoreLookup;
+  private final ConcurrentHashMap<String, HashMap<Integer, String>> fileLoadLookup;
   private LinkedHashMap<String, Integer> storeFileCount;
   private final Object storeFileCountLock;
-  private final HashMap<String, CountDownLatch> fileCountdown;
-  private final Object fileCountdownLock;
-  private final HashMap<String, CountDownLatch> removeCountdown;
-  private final Object removeCountdownLock;
+  private final ConcurrentHashMap<String, PendingOperation> pendingStores;
+  private final ConcurrentHashMap<String, PendingOperation> pendingRemoves;
+  private final TimerWheel timers;
+  private final OutboundChannel.Registry channels;
+  private final LockStripes fileLocks;
+  private final Set<String> overloadedStores;
+  private final ConcurrentHashMap<String, MultipartUpload> multiparts;
+  private final boolean dedup;
+  private final ContentIndex contentIndex;
+  private final ConcurrentHashMap<String, String> storeHashes;
+  private final int writeQuorum;
+  // dstores that have acked each STORE, until its replication deadline
+  private final ConcurrentHashMap<String, Set<String>> storeReplicas;
+  private final Set<String> underReplicated;
+  private final AtomicBoolean repairScheduled;
+  // one REBALANCE in flight per source dstore, since REBALANCE_COMPLETE does not say which
+  private final ConcurrentHashMap<String, PendingOperation> pendingRebalances;
+  // files on dstores but not in the index belong to other shards when dstores are shared
+  private final boolean sharedDstores;
+  // anti-entropy: buckets asked of each dstore this round, and those whose digests differed
+  private final ConcurrentHashMap<String, Integer> digestBuckets;
+  private final ConcurrentHashMap<String, Set<Integer>> differingBuckets;
+  // disagreements found in the last round per dstore, acted on if the next round finds them again
+  private final ConcurrentHashMap<String, Set<String>> suspects;
+  // dstores whose connection was gone at the last round
+  private final ConcurrentHashMap<String, Socket> lostStores;
+  // "<port> <object>" removes sent by anti-entropy rather than for a client
+  private final Set<String> purges;
+  // files being stored by linking to content the dstores already hold
+  private final Set<String> linking;
+  private final int inlineMax;
+  private final long inlineFlushMs;
+  private final long multipartExpiryMs;
+  // tiny files stored inline that are not on all their dstores yet
+  private final ConcurrentHashMap<String, InlineFile> inlinePending;
+  private final InlineCache inlineCache;
+  // wakes the inline writer early when a request waits on it
+  private final Object inlineFlush;
+  // data sessions to the dstores, only used by the inline writer
+  private final HashMap<String, Socket> inlineSessions;
+  private final Metadata metadata;
+  private final ControllerGroup group;
   public ServerSocket ss;
 
   public Controller(int replicFactor, int timeout, int rebalance, int port) {
@@ -37,22 +79,57 @@ public class Controller {
     this.timeout = timeout;
     this.rebalance = rebalance;
     this.log = new ScreenLogger("Controller");
-    this.storeIndex = new HashMap<>();
-    this.storeIndexLock = new Object();
-    this.fileIndex = new HashMap<>();
-    this.fileIndexLock = new Object();
-    this.fileClientIndex = new HashMap<>();
-    this.fileClientLock = new Object();
-    this.fileStoreLookup = new HashMap<>();
-    this.fileStoreLock = new Object();
-    this.fileLoadLookup = new HashMap<>();
-    this.fileLoadLock = new Object();
+    this.storeIndex = new ConcurrentHashMap<>();
+    this.storePorts = new ConcurrentHashMap<>();
+    this.fileIndex = new ConcurrentHashMap<>();
+    this.fileClientIndex = new ConcurrentHashMap<>();
+    this.fileStoreLookup = new ConcurrentHashMap<>();
+    this.fileLoadLookup = new ConcurrentHashMap<>();
     this.storeFileCount = new LinkedHashMap<>();
     this.storeFileCountLock = new Object();
-    this.fileCountdown = new HashMap<>();
-    this.fileCountdownLock = new Object();
-    this.removeCountdown = new HashMap<>();
-    this.removeCountdownLock = new Object();
+    this.pendingStores = new ConcurrentHashMap<>();
+    this.pendingRemoves = new ConcurrentHashMap<>();
+    // expiries send to clients and dstores, which can block, so they run off the wheel thread
+    this.timers =
+        new TimerWheel(
+            10,
+            512,
+            Executors.newCachedThreadPool(
+                r -> {
+                  Thread t = new Thread(r, "controller-timeout");
+                  t.setDaemon(true);
+                  return t;
+                }));
+    this.channels = new OutboundChannel.Registry();
+    this.fileLocks = new LockStripes();
+    this.overloadedStores = ConcurrentHashMap.newKeySet();
+    this.multiparts = new ConcurrentHashMap<>();
+    this.dedup = Boolean.getBoolean("dss.dedup");
+    this.contentIndex = new ContentIndex();
+    this.storeHashes = new ConcurrentHashMap<>();
+    this.writeQuorum =
+        Math.max(1, Math.min(replicFactor, Integer.getInteger("dss.writeQuorum", replicFactor)));
+    this.storeReplicas = new ConcurrentHashMap<>();
+    this.underReplicated = ConcurrentHashMap.newKeySet();
+    this.repairScheduled = new AtomicBoolean();
+    this.pendingRebalances = new ConcurrentHashMap<>();
+    this.sharedDstores = Boolean.getBoolean("dss.sharedDstores");
+    this.digestBuckets = new ConcurrentHashMap<>();
+    this.differingBuckets = new ConcurrentHashMap<>();
+    this.suspects = new ConcurrentHashMap<>();
+    this.lostStores = new ConcurrentHashMap<>();
+    this.purges = ConcurrentHashMap.newKeySet();
+    this.linking = ConcurrentHashMap.newKeySet();
+    this.inlineMax = Integer.getInteger("dss.inlineMax", 1024);
+    this.inlineFlushMs = Long.getLong("dss.inlineFlushMs", 50L);
+    this.multipartExpiryMs = Long.getLong("dss.multipartExpiryMs", 3_600_000L);
+    this.inlinePending = new ConcurrentHashMap<>();
+    this.inlineCache = new InlineCache(Long.getLong("dss.inlineCacheBytes", 16L << 20));
+    this.inlineFlush = new Object();
+    this.inlineSessions = new HashMap<>();
+    this.metadata = new Metadata();
+    this.group =
+        ControllerGroup.fromSystemProperties(port, timeout, timers, metadata, this::send);
     try {
       ss = new ServerSocket(port);
       //            ss.setSoTimeout(timeout);
@@ -61,6 +138,43 @@ public class Controller {
     }
   }
 
+  /**
+   * Send a message to a peer through its connection's outbound channel
+   *
+   * @param peer - client or dstore socket
+   * @param message - message to send
+   */
+  private void send(Socket peer, String message) {
+    channels.send(peer, message);
+  }
+
+  /**
+   * Writes are only taken by the leader of the controller group. Anyone else redirects the client
+   * with NOT_LEADER <port>, or a bare NOT_LEADER while no leader is known.
+   *
+   * @param client - client socket
+   * @return true if this controller may handle the write
+   */
+  private boolean leading(Socket client) {
+    if (group.isLeader()) return true;
+    int leader = group.getLeader();
+    send(client, Protocol.NOT_LEADER_TOKEN + (leader == -1 ? "" : " " + leader));
+    return false;
+  }
+
+  /**
+   * Reply for a change the controller group did not confirm in time. The change stands on this
+   * controller, but the client must not count on it surviving a failover.
+   *
+   * @param client - client socket, or null if nobody is waiting
+   * @return the failure handler to replicate with
+   */
+  private Runnable notReplicated(Socket client) {
+    return () -> {
+      if (client != null) send(client, Protocol.ERROR_NOT_REPLICATED_TOKEN);
+    };
+  }
+
   /**
    * Handle join request from dstore JOIN <port>
    *
@@ -69,15 +183,30 @@ public class Controller {
    */
   private void storeJoin(String port, Socket client) {
     log.info("JOIN request received from " + port);
-    synchronized (storeIndexLock) {
-      storeIndex.put(port, client);
-    }
+    storeIndex.put(port, client);
+    storePorts.put(client, port);
 
     synchronized (storeFileCountLock) {
       storeFileCount.put(port, 0);
     }
   }
 
+  /**
+   * Handle admission state change from dstore OVERLOADED <port> / AVAILABLE <port>
+   *
+   * @param port - dstore port
+   * @param overloaded - whether the dstore is over its limits
+   */
+  private void storeLoad(String port, boolean overloaded) {
+    if (overloaded) {
+      log.warn("Dstore " + port + " is over its admission limits");
+      overloadedStores.add(port);
+    } else {
+      log.info("Dstore " + port + " is accepting transfers again");
+      overloadedStores.remove(port);
+    }
+  }
+
   /**
    * Handle list request from client LIST
    *
@@ -85,40 +214,27 @@ public class Controller {
    */
   public void listFiles(Socket client) {
     log.info("LIST request received");
-    synchronized (storeIndexLock) {
-      if (storeIndex.size() == 0) {
-        log.error("No stores joined but LIST request received");
-        try {
-          PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-          out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-        return;
-      }
+    if (storeIndex.isEmpty()) {
+      log.error("No stores joined but LIST request received");
+      send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      return;
     }
-    try {
-      PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-      StringBuilder outLine = new StringBuilder(" ");
-      synchronized (fileIndexLock) {
-        Iterator<Map.Entry<String, String>> iterator = fileIndex.entrySet().iterator();
-        log.debug("Total of " + fileIndex.size() + " files stored");
-        while (iterator.hasNext()) {
-          Map.Entry<String, String> entry = iterator.next();
-          if (entry.getValue().startsWith("Stored")) {
-            outLine.append(entry.getKey()).append(" ");
-          }
-          log.debug(entry.getKey() + ": status " + entry.getValue());
-        }
-      }
-      if (outLine.length() > 0) {
-        outLine.deleteCharAt(outLine.length() - 1);
+    StringBuilder outLine = new StringBuilder(" ");
+    // weakly consistent view, files mid-STORE or mid-REMOVE are filtered by status anyway
+    Iterator<Map.Entry<String, String>> iterator = fileIndex.entrySet().iterator();
+    log.debug("Total of " + fileIndex.size() + " files stored");
+    while (iterator.hasNext()) {
+      Map.Entry<String, String> entry = iterator.next();
+      if (entry.getValue().startsWith("Stored")) {
+        outLine.append(entry.getKey()).append(" ");
       }
-      out.println(Protocol.LIST_TOKEN + outLine);
-      log.debug("Files listed are: " + outLine);
-    } catch (IOException e) {
-      e.printStackTrace();
+      log.debug(entry.getKey() + ": status " + entry.getValue());
     }
+    if (outLine.length() > 0) {
+      outLine.deleteCharAt(outLine.length() - 1);
+    }
+    send(client, Protocol.LIST_TOKEN + outLine);
+    log.debug("Files listed are: " + outLine);
   }
 
   /**
@@ -128,21 +244,14 @@ public class Controller {
    */
   public void clientStore(String file, String fileSize, Socket client) {
     log.info("STORE request received for " + file + " size " + fileSize);
-    synchronized (fileIndexLock) {
+    if (!leading(client) || !checkFileName(client, file)) return;
+    synchronized (fileLocks.forKey(file)) {
       if (checkExistedFile(client, fileIndex.containsKey(file), file)) return;
     }
 
-    int storePoolSize;
-    synchronized (storeIndexLock) {
-      storePoolSize = storeIndex.size();
-    }
+    int storePoolSize = storeIndex.size();
     if (storePoolSize < replicFactor) {
-      try {
-        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-        out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
       log.warn(
           file
               + ": Insufficient dstore. "
@@ -154,71 +263,651 @@ public class Controller {
     }
 
     // update file index
-    synchronized (fileIndexLock) {
-      fileIndex.putIfAbsent(file, "Storing 0 " + replicFactor);
+    synchronized (fileLocks.forKey(file)) {
       // <FileName, "Storing i j"> where i is the No. of dstore acked, j is the number of acks
       // needed
-    }
-    synchronized (fileClientLock) {
+      boolean raced = fileIndex.putIfAbsent(file, "Storing 0 " + replicFactor) != null;
+      if (checkExistedFile(client, raced, file)) return;
       fileClientIndex.putIfAbsent(file, client);
     }
 
+    String placement = pickDstores();
+    Set<String> acked = ConcurrentHashMap.newKeySet();
+    storeReplicas.put(file, acked);
+
+    // registered before STORE_TO goes out so an early ack cannot miss it
+    PendingOperation op =
+        new PendingOperation(
+            writeQuorum,
+            () -> {
+              log.debug(writeQuorum + " dstore acks received for " + file);
+              pendingStores.remove(file);
+              registerFile(placement, acked, file, fileSize);
+            },
+            () -> storeTimedOut(file));
+    pendingStores.put(file, op);
+    op.start(timers, timeout);
+    // replicas beyond the write quorum may still ack until then
+    timers.schedule(() -> replicationDeadline(file), timeout);
+    send(client, Protocol.STORE_TO_TOKEN + " " + placement);
+  }
+
+  /**
+   * Check a STORE's replica count once its dstores have had the full timeout to ack, and queue
+   * the file for repair if it completed at the write quorum but some replicas never acked
+   *
+   * @param file - file name
+   */
+  private void replicationDeadline(String file) {
+    Set<String> acked = storeReplicas.remove(file);
+    if (acked == null || acked.size() >= replicFactor) return;
+    synchronized (fileLocks.forKey(file)) {
+      String status = fileIndex.get(file);
+      // a STORE that missed even the quorum was dropped by its own timeout
+      if (status == null || !status.startsWith("Stored")) return;
+    }
+    log.warn(file + ": " + acked.size() + "/" + replicFactor + " replicas, queued for repair");
+    underReplicated.add(file);
+    scheduleRepair();
+  }
+
+  private void scheduleRepair() {
+    if (repairScheduled.compareAndSet(false, true)) {
+      timers.schedule(this::repairUnderReplicated, timeout);
+    }
+  }
+
+  /** Re-replicate files that are short of replicas, retrying later for those that cannot be yet */
+  private void repairUnderReplicated() {
+    repairScheduled.set(false);
+    if (!group.isLeader()) return;
+    for (String file : underReplicated) {
+      repair(file);
+    }
+    if (!underReplicated.isEmpty()) scheduleRepair();
+  }
+
+  /**
+   * Copy a file or part to enough further dstores to bring it back to the replication factor, by
+   * having one of its replicas send it: REBALANCE 1 <filename> <n> <port> ... 0
+   *
+   * @param file - file or part object name
+   */
+  private void repair(String file) {
+    List<String> holders;
+    synchronized (fileLocks.forKey(MultipartUpload.ownerOf(file))) {
+      String status = fileIndex.get(MultipartUpload.ownerOf(file));
+      if (status == null || !status.startsWith("Stored") || multiparts.containsKey(file)) {
+        underReplicated.remove(file);
+        return;
+      }
+      holders = dstoresHasFile(file);
+    }
+    int missing = replicFactor - holders.size();
+    if (missing <= 0) {
+      underReplicated.remove(file);
+      return;
+    }
+    holders.removeIf(port -> !storeIndex.containsKey(port));
+    holders.sort(Comparator.comparing(overloadedStores::contains));
+    if (holders.isEmpty()) {
+      log.error(file + ": No live replica left to repair from");
+      return;
+    }
     sortStoreFileCount();
-    ArrayList<String> portsArray;
+    List<String> targets = new ArrayList<>();
     synchronized (storeFileCountLock) {
-      portsArray = new ArrayList<>(storeFileCount.keySet());
+      for (String port : storeFileCount.keySet()) {
+        if (targets.size() < missing && !holders.contains(port) && storeIndex.containsKey(port)) {
+          targets.add(port);
+        }
+      }
+    }
+    if (targets.isEmpty()) return;
+    String source = holders.get(0);
+    PendingOperation op =
+        new PendingOperation(
+            1,
+            () -> {
+              pendingRebalances.remove(source);
+              addReplicas(file, targets);
+              log.info(file + ": repaired onto " + targets);
+            },
+            () -> {
+              pendingRebalances.remove(source);
+              log.warn(file + ": repair from " + source + " timed out, will retry");
+            });
+    if (pendingRebalances.putIfAbsent(source, op) != null) return;
+    op.start(timers, timeout);
+    send(
+        storeIndex.get(source),
+        Protocol.REBALANCE_TOKEN
+            + " 1 "
+            + file
+            + " "
+            + targets.size()
+            + " "
+            + String.join(" ", targets)
+            + " 0");
+  }
+
+  /**
+   * Record further dstores holding a stored file or part and let the rest of the group know
+   *
+   * @param file - file or part object name
+   * @param ports - dstores that now hold it
+   */
+  private void addReplicas(String file, List<String> ports) {
+    String owner = MultipartUpload.ownerOf(file);
+    List<String> added = new ArrayList<>();
+    String entry;
+    synchronized (fileLocks.forKey(owner)) {
+      String status = fileIndex.get(owner);
+      String lookup = fileStoreLookup.get(file);
+      if (status == null || !status.startsWith("Stored") || lookup == null) return;
+      List<String> holders = Arrays.asList(lookup.split(" "));
+      for (String port : ports) {
+        if (!holders.contains(port) && !added.contains(port)) added.add(port);
+      }
+      if (added.isEmpty()) return;
+      fileStoreLookup.put(file, lookup + " " + String.join(" ", added));
+      if (holders.size() - 1 + added.size() >= replicFactor) underReplicated.remove(file);
+      entry = entryOf(owner);
+    }
+    countFiles(String.join(" ", added), 1);
+    group.replicate(entry);
+  }
+
+  /**
+   * Handle REBALANCE_COMPLETE from a dstore that finished sending the files it was asked to
+   *
+   * @param dstore - dstore socket
+   */
+  private void rebalanceComplete(Socket dstore) {
+    String port = storePorts.get(dstore);
+    PendingOperation op = port == null ? null : pendingRebalances.get(port);
+    if (op == null) {
+      log.error("REBALANCE_COMPLETE from dstore " + port + " without a rebalance in progress");
+      return;
+    }
+    op.ack();
+  }
+
+  private void storeTimedOut(String file) {
+    log.warn("Timeout while waiting for dstore acks of " + file);
+    pendingStores.remove(file);
+    storeHashes.remove(file);
+    synchronized (fileLocks.forKey(file)) {
+      fileIndex.remove(file);
+      fileClientIndex.remove(file);
+    }
+  }
+
+  /** A tiny file stored inline, waiting to be written to its dstores. Guarded by its file lock. */
+  private static final class InlineFile {
+    private final byte[] data;
+    // dstores still to write, and those written
+    private final List<String> targets;
+    private final List<String> written = new ArrayList<>();
+    // requests that need the file on its dstores, run again once it is
+    private final List<Runnable> waiters = new ArrayList<>();
+    // set once requests have waited a timeout for the file, they then go to the dstores that have
+    // it rather than wait for those that may never get it
+    private boolean overdue;
+
+    private InlineFile(byte[] data, String ports) {
+      this.data = data;
+      this.targets = new ArrayList<>(Arrays.asList(ports.split(" ")));
+    }
+
+    private String ports() {
+      List<String> ports = new ArrayList<>(written);
+      ports.addAll(targets);
+      return String.join(" ", ports);
+    }
+  }
+
+  /**
+   * Handle store request for a tiny file with its content inline STORE_INLINE <filename> <size>
+   * <base64>. The file is stored as soon as the controller group holds it, and written to its
+   * dstores in batches in the background.
+   *
+   * @param file - file name
+   * @param fileSize - size in bytes
+   * @param content - base64 content
+   * @param client - client socket
+   */
+  private void clientStoreInline(String file, String fileSize, String content, Socket client) {
+    log.info("STORE_INLINE request received for " + file + " size " + fileSize);
+    if (!leading(client) || !checkFileName(client, file)) return;
+    byte[] data;
+    try {
+      data = Base64.getDecoder().decode(content);
+      if (data.length != Long.parseLong(fileSize)) {
+        throw new IllegalArgumentException(data.length + " bytes sent");
+      }
+    } catch (IllegalArgumentException e) {
+      send(client, Protocol.ERROR_BAD_REQUEST_TOKEN);
+      log.warn(file + ": malformed inline store: " + e.getMessage());
+      return;
+    }
+    if (data.length > inlineMax) {
+      send(client, Protocol.ERROR_TOO_LARGE_TOKEN);
+      log.warn(file + ": " + data.length + " bytes is too large to store inline");
+      return;
+    }
+    if (storeIndex.size() < replicFactor) {
+      send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      log.warn(file + ": Insufficient dstore for inline store");
+      return;
+    }
+    String placement = pickDstores();
+    String entry;
+    synchronized (fileLocks.forKey(file)) {
+      if (checkExistedFile(client, fileIndex.containsKey(file), file)) return;
+      inlinePending.put(file, new InlineFile(data, placement));
+      fileStoreLookup.put(file, data.length + " " + placement);
+      fileIndex.put(file, "Stored");
+      entry = entryOf(file);
+    }
+    inlineCache.put(file, data);
+    countFiles(placement, 1);
+    group.replicate(
+        entry, () -> send(client, Protocol.STORE_COMPLETE_TOKEN), notReplicated(client));
+  }
+
+  /**
+   * Handle LOAD_INLINE <filename>: reply INLINE <size> <base64> when the controller holds the
+   * file's content, otherwise LOAD_FROM as for LOAD
+   *
+   * @param fileName - file name
+   * @param client - client socket
+   */
+  private void clientLoadInline(String fileName, Socket client) {
+    log.info("LOAD_INLINE request received for " + fileName);
+    byte[] data = null;
+    synchronized (fileLocks.forKey(fileName)) {
+      String status = fileIndex.get(fileName);
+      if (status != null && status.startsWith("Stored")) {
+        InlineFile inline = inlinePending.get(fileName);
+        data = inline != null ? inline.data : inlineCache.get(fileName);
+      }
+    }
+    if (data == null) {
+      clientLoad(fileName, client, true);
+      return;
+    }
+    send(
+        client,
+        Protocol.INLINE_TOKEN
+            + " "
+            + data.length
+            + " "
+            + Base64.getEncoder().encodeToString(data));
+  }
+
+  /**
+   * Hold back a request that needs an inline file to be on its dstores until it is, or for at most
+   * a timeout. A file whose dstores left with none to spare may never be written everywhere, so
+   * after that its requests are served by the dstores written so far, as for any file that lost
+   * replicas.
+   *
+   * @param fileName - file name
+   * @param retry - the request, run again once the file is written
+   * @return true if the request was held back
+   */
+  private boolean deferInline(String fileName, Runnable retry) {
+    synchronized (fileLocks.forKey(fileName)) {
+      InlineFile inline = inlinePending.get(fileName);
+      if (inline == null || inline.overdue) return false;
+      if (inline.waiters.isEmpty()) {
+        timers.schedule(() -> inlineOverdue(fileName, inline), timeout);
+      }
+      inline.waiters.add(retry);
     }
+    synchronized (inlineFlush) {
+      inlineFlush.notifyAll();
+    }
+    return true;
+  }
+
+  /**
+   * Stop holding back requests for an inline file still not written after a timeout, and run
+   * those waiting
+   *
+   * @param fileName - file name
+   * @param inline - the pending file the timeout was set for
+   */
+  private void inlineOverdue(String fileName, InlineFile inline) {
+    List<Runnable> waiters;
+    synchronized (fileLocks.forKey(fileName)) {
+      if (inlinePending.get(fileName) != inline) return;
+      log.warn(fileName + ": not on all its dstores in time, serving from " + inline.written);
+      inline.overdue = true;
+      waiters = new ArrayList<>(inline.waiters);
+      inline.waiters.clear();
+    }
+    waiters.forEach(Runnable::run);
+  }
+
+  /** Write inline files to their dstores every inline flush period, while leading */
+  private void inlineLoop() {
+    while (true) {
+      synchronized (inlineFlush) {
+        try {
+          inlineFlush.wait(inlineFlushMs);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      if (group.isLeader() && !inlinePending.isEmpty()) flushInline();
+    }
+  }
+
+  /**
+   * Write every pending inline file to the dstores it still misses, one STORE_BATCH per dstore.
+   * Targets that left are replaced by another dstore; a failed batch is retried next time.
+   */
+  private void flushInline() {
+    // dstore -> files to write to it
+    Map<String, List<String>> batches = new HashMap<>();
+    for (String file : inlinePending.keySet()) {
+      synchronized (fileLocks.forKey(file)) {
+        InlineFile inline = inlinePending.get(file);
+        if (inline == null) continue;
+        retargetInline(file, inline);
+        for (String port : inline.targets) {
+          batches.computeIfAbsent(port, p -> new ArrayList<>()).add(file);
+        }
+      }
+    }
+    for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+      List<String> files = batch.getValue();
+      for (int from = 0; from < files.size(); from += INLINE_BATCH_FILES) {
+        int to = Math.min(files.size(), from + INLINE_BATCH_FILES);
+        List<String> written = writeBatch(batch.getKey(), files.subList(from, to));
+        for (String file : written) {
+          inlineWritten(file, batch.getKey());
+        }
+      }
+    }
+  }
+
+  /** Swap targets that are no longer joined for other dstores. Called with the file's lock held. */
+  private void retargetInline(String file, InlineFile inline) {
+    for (String port : new ArrayList<>(inline.targets)) {
+      if (storeIndex.containsKey(port)) continue;
+      String replacement = null;
+      sortStoreFileCount();
+      synchronized (storeFileCountLock) {
+        for (String candidate : storeFileCount.keySet()) {
+          if (!inline.targets.contains(candidate) && !inline.written.contains(candidate)) {
+            replacement = candidate;
+            break;
+          }
+        }
+      }
+      // with no dstore to spare the file waits for this one to come back
+      if (replacement == null) continue;
+      inline.targets.set(inline.targets.indexOf(port), replacement);
+      fileStoreLookup.put(file, inline.data.length + " " + inline.ports());
+      countFiles(port, -1);
+      countFiles(replacement, 1);
+      log.warn(file + ": dstore " + port + " left, writing to " + replacement + " instead");
+    }
+  }
 
-    StringBuilder ports = new StringBuilder();
-    for (int i = 0; i < replicFactor; i++) {
-      ports.append(portsArray.get(i)).append(" ");
+  /**
+   * Write a batch of inline files to one dstore over a data session: STORE_BATCH <n>, then each
+   * file's <filename> <size> line and content, answered by one ACK
+   *
+   * @param port - dstore port
+   * @param files - file names
+   * @return files written, empty if the batch failed
+   */
+  private List<String> writeBatch(String port, List<String> files) {
+    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    List<String> written = new ArrayList<>();
+    for (String file : files) {
+      InlineFile inline = inlinePending.get(file);
+      if (inline == null) continue;
+      batch.writeBytes((file + " " + inline.data.length + "\n").getBytes(StandardCharsets.UTF_8));
+      batch.writeBytes(inline.data);
+      written.add(file);
     }
-    if (ports.length() > 0) ports = new StringBuilder(ports.substring(0, ports.length() - 1));
+    if (written.isEmpty()) return written;
     try {
-      PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-      out.println(Protocol.STORE_TO_TOKEN + " " + ports);
+      Socket session = inlineSession(port);
+      OutputStream out = session.getOutputStream();
+      out.write(
+          (Protocol.STORE_BATCH_TOKEN + " " + written.size() + "\n")
+              .getBytes(StandardCharsets.UTF_8));
+      batch.writeTo(out);
+      out.flush();
+      String reply = LineReader.readLine(session.getInputStream());
+      if (!Protocol.ACK_TOKEN.equals(reply)) {
+        throw new IOException("expected " + Protocol.ACK_TOKEN + ", got " + reply);
+      }
+      log.debug(written.size() + " inline files written to dstore " + port);
+      return written;
     } catch (IOException e) {
-      e.printStackTrace();
+      log.warn("Inline batch to dstore " + port + " failed: " + e.getMessage());
+      Socket session = inlineSessions.remove(port);
+      try {
+        if (session != null) session.close();
+      } catch (IOException ignored) {
+        // already broken
+      }
+      return List.of();
+    }
+  }
+
+  private Socket inlineSession(String port) throws IOException {
+    Socket session = inlineSessions.get(port);
+    if (session != null && !session.isClosed()) return session;
+    session = new Socket(InetAddress.getLocalHost(), Integer.parseInt(port));
+    try {
+      session.setSoTimeout(timeout);
+      session.setTcpNoDelay(true);
+      OutputStream out = session.getOutputStream();
+      out.write((Protocol.DATA_SESSION_TOKEN + "\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      String reply = LineReader.readLine(session.getInputStream());
+      if (!Protocol.ACK_TOKEN.equals(reply)) {
+        throw new IOException("expected " + Protocol.ACK_TOKEN + ", got " + reply);
+      }
+    } catch (IOException e) {
+      session.close();
+      throw e;
     }
+    inlineSessions.put(port, session);
+    return session;
+  }
 
-    // timeout for store ack
-    CountDownLatch latch = new CountDownLatch(replicFactor);
-    boolean isComplete = false;
-    synchronized (fileCountdownLock) {
-      fileCountdown.put(file, latch);
+  /**
+   * Record an inline file written to one of its dstores. Once it is on all of them it becomes an
+   * ordinary stored file and the requests waiting on it run again.
+   *
+   * @param file - file name
+   * @param port - dstore port
+   */
+  private void inlineWritten(String file, String port) {
+    String entry;
+    List<Runnable> waiters;
+    synchronized (fileLocks.forKey(file)) {
+      InlineFile inline = inlinePending.get(file);
+      if (inline == null || !inline.targets.remove(port)) return;
+      inline.written.add(port);
+      if (!inline.targets.isEmpty()) return;
+      inlinePending.remove(file);
+      fileStoreLookup.put(file, inline.data.length + " " + inline.ports());
+      entry = entryOf(file);
+      waiters = inline.waiters;
     }
+    log.debug(file + ": on all its dstores");
+    group.replicate(entry);
+    waiters.forEach(Runnable::run);
+  }
+
+  /**
+   * Handle store request with a content hash STORE_HASHED <filename> <size> <sha256>. If the
+   * content is already in the cluster the dstores holding it link the new name to it and the
+   * client gets STORE_COMPLETE without sending any data; otherwise this is a normal STORE. The
+   * hash is taken on trust, so a client knowing another file's hash can store a link to it. If a
+   * dstore cannot link, the client gets LINK_FAILED and may store the file normally. A size that
+   * does not parse gets ERROR_BAD_REQUEST.
+   *
+   * @param file - file name
+   * @param fileSize - size in bytes
+   * @param hash - hex SHA-256 of the content
+   * @param client - client socket
+   */
+  private void clientStoreHashed(String file, String fileSize, String hash, Socket client) {
+    if (!leading(client) || !checkFileName(client, file)) return;
+    long size;
     try {
-      isComplete = latch.await(timeout, TimeUnit.MILLISECONDS);
-    } catch (InterruptedException e) {
-      log.error("Latch interrupted while waiting for dstore acks.");
+      size = Long.parseLong(fileSize);
+      if (size < 0) throw new NumberFormatException("negative size");
+    } catch (NumberFormatException e) {
+      send(client, Protocol.ERROR_BAD_REQUEST_TOKEN);
+      log.warn(file + ": malformed hashed store: " + e.getMessage());
+      return;
     }
-    if (isComplete) {
-      log.debug("All dstore acks received for " + file);
-      registerFile(ports.toString(), file, fileSize);
-    } else {
-      log.warn("Timeout while waiting for dstore acks of " + file);
-      synchronized (fileIndexLock) {
-        fileIndex.remove(file);
+    ContentIndex.Match content = dedup ? contentIndex.lookup(hash) : null;
+    List<Socket> dstores = new ArrayList<>();
+    if (content != null && content.getSize() == size) {
+      for (String port : content.getPorts().split(" ")) {
+        dstores.add(storeIndex.get(port));
       }
     }
+    // unknown content, or a dstore holding it has left
+    if (dstores.isEmpty() || dstores.contains(null)) {
+      clientStore(file, fileSize, client);
+      return;
+    }
+    log.info("STORE_HASHED request received for " + file + ", content already stored");
+    String ports = content.getPorts();
+    String[] targets = ports.split(" ");
+    synchronized (fileLocks.forKey(file)) {
+      boolean exists = fileIndex.putIfAbsent(file, "Storing 0 " + targets.length) != null;
+      if (checkExistedFile(client, exists, file)) return;
+      fileClientIndex.putIfAbsent(file, client);
+    }
+
+    PendingOperation op =
+        new PendingOperation(
+            targets.length,
+            () -> {
+              log.debug("All dstore links done for " + file);
+              linking.remove(file);
+              pendingStores.remove(file);
+              storeHashes.put(file, hash);
+              registerFile(ports, null, file, fileSize);
+            },
+            () -> {
+              linking.remove(file);
+              storeTimedOut(file);
+            });
+    linking.add(file);
+    pendingStores.put(file, op);
+    op.start(timers, timeout);
+    for (Socket dstore : dstores) {
+      send(dstore, Protocol.LINK_TOKEN + " " + content.getSource() + " " + file);
+    }
   }
 
-  private void registerFile(String ports, String fileName, String fileSize) {
-    synchronized (fileStoreLock) {
-      fileStoreLookup.put(fileName, fileSize + " " + ports);
+  /**
+   * Handle LINK_FAILED <filename> from a dstore that could not link a STORE_HASHED file: give up
+   * on the store at once and tell the client, rather than leaving it to the timeout. Links made on
+   * other dstores are left for anti-entropy to clear.
+   *
+   * @param file - file name
+   * @param dstore - dstore socket
+   */
+  private void linkFailed(String file, Socket dstore) {
+    log.warn(file + ": link failed on dstore " + dstore.getPort());
+    PendingOperation op = pendingStores.get(file);
+    Socket requester = fileClientIndex.get(file);
+    if (!linking.contains(file) || op == null || !op.fail()) return;
+    if (requester != null) send(requester, Protocol.LINK_FAILED_TOKEN);
+  }
+
+  /**
+   * Choose the dstores for a new object: fewest files first, dstores over their admission limits
+   * only if nothing else is left
+   *
+   * @return space separated ports
+   */
+  private String pickDstores() {
+    sortStoreFileCount();
+    ArrayList<String> portsArray;
+    synchronized (storeFileCountLock) {
+      portsArray = new ArrayList<>(storeFileCount.keySet());
     }
-    synchronized (fileClientLock) {
-      try {
-        Socket clientSocket = fileClientIndex.get(fileName);
+    portsArray.sort(Comparator.comparing(overloadedStores::contains));
+    return String.join(" ", portsArray.subList(0, replicFactor));
+  }
 
-        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-        out.println(Protocol.STORE_COMPLETE_TOKEN);
+  /**
+   * Keep the per-dstore object counts used for placement up to date
+   *
+   * @param ports - space separated dstore ports
+   * @param delta - objects added (positive) or removed (negative) on each
+   */
+  private void countFiles(String ports, int delta) {
+    synchronized (storeFileCountLock) {
+      for (String port : ports.split(" ")) {
+        storeFileCount.computeIfPresent(port, (p, count) -> count + delta);
+      }
+    }
+  }
 
-      } catch (IOException e) {
-        e.printStackTrace();
+  /**
+   * Make a stored file visible and tell the client
+   *
+   * @param placement - space separated dstores the file was sent to
+   * @param acked - those that have acked so far, or null if all of them did
+   * @param fileName - file name
+   * @param fileSize - size in bytes
+   */
+  private void registerFile(
+      String placement, Set<String> acked, String fileName, String fileSize) {
+    String hash = storeHashes.remove(fileName);
+    String ports;
+    Socket clientSocket;
+    synchronized (fileLocks.forKey(fileName)) {
+      // under the lock, so an ack racing with this either makes it in or sees the file stored
+      ports =
+          acked == null
+              ? placement
+              : Arrays.stream(placement.split(" "))
+                  .filter(acked::contains)
+                  .collect(Collectors.joining(" "));
+      fileStoreLookup.put(fileName, fileSize + " " + ports);
+      fileIndex.replace(fileName, "Stored");
+      log.debug(fileName + ": is now stored");
+      clientSocket = fileClientIndex.remove(fileName);
+    }
+    if (dedup && hash != null) {
+      if (contentIndex.add(hash, fileName, Long.parseLong(fileSize), ports)) {
+        log.debug(fileName + ": content " + hash + " indexed");
       }
-      fileClientIndex.remove(fileName);
     }
+    countFiles(ports, 1);
+    String entry =
+        Protocol.STORED_TOKEN
+            + " "
+            + fileName
+            + " "
+            + fileSize
+            + " "
+            + (hash == null ? "-" : hash)
+            + " "
+            + ports;
+    group.replicate(
+        entry,
+        () -> send(clientSocket, Protocol.STORE_COMPLETE_TOKEN),
+        notReplicated(clientSocket));
   }
 
   private void sortStoreFileCount() {
@@ -237,13 +926,7 @@ public class Controller {
 
   private Boolean checkExistedFile(Socket client, boolean b, String file) {
     if (b) {
-      try {
-        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-        out.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
-
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      send(client, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
       log.warn(file + ": Already exists");
       return true;
     }
@@ -251,41 +934,80 @@ public class Controller {
     return false;
   }
 
-  private void storeAck(String fileName) {
-    boolean stored = false;
-    boolean doCountdown = false;
-    synchronized (fileIndexLock) {
-      if (fileIndex.containsKey(fileName) && fileIndex.get(fileName).startsWith("Storing")) {
-        doCountdown = true;
-        String[] status = fileIndex.get(fileName).split(" ");
+  /**
+   * Refuse names of the form used for part objects, which would be taken for parts of another
+   * file
+   *
+   * @param client - client socket
+   * @param file - file name
+   * @return true if the name may be stored
+   */
+  private boolean checkFileName(Socket client, String file) {
+    if (!MultipartUpload.isPartName(file)) return true;
+    send(client, Protocol.ERROR_INVALID_NAME_TOKEN);
+    log.warn(file + ": Reserved for multipart parts");
+    return false;
+  }
+
+  /**
+   * Handle store ack from dstore STORE_ACK <filename> [<sha256>]. Acks arriving after
+   * STORE_COMPLETE went out at the write quorum add their dstore to the file's replicas.
+   *
+   * @param fileName - stored object
+   * @param hash - content hash reported by the dstore, or null
+   * @param dstore - dstore socket
+   */
+  private void storeAck(String fileName, String hash, Socket dstore) {
+    // dstores ack to every controller in the group, only the leader has the store pending
+    if (!group.isLeader()) return;
+    String port = storePorts.get(dstore);
+    PendingOperation op;
+    synchronized (fileLocks.forKey(MultipartUpload.ownerOf(fileName))) {
+      op = pendingStores.get(fileName);
+      String current = fileIndex.get(fileName);
+      Set<String> acked = storeReplicas.get(fileName);
+      if (acked != null && port != null) acked.add(port);
+      if (op != null && !fileName.equals(MultipartUpload.ownerOf(fileName))) {
+        log.info(fileName + ": part ACK received");
+      } else if (op != null && current != null && current.startsWith("Storing")) {
+        String[] status = current.split(" ");
         int i = Integer.parseInt(status[1]);
         int r = Integer.parseInt(status[2]);
         i++;
-        if (i == r) {
-          fileIndex.replace(fileName, "Stored");
-          stored = true;
-          log.debug(fileName + ": is now stored");
-        } else {
-          fileIndex.replace(fileName, "Storing " + i + " " + r);
-          log.info(fileName + ": " + i + "/" + r + " ACKs received");
-        }
+        fileIndex.replace(fileName, "Storing " + i + " " + r);
+        log.info(fileName + ": " + i + "/" + r + " ACKs received");
+      } else if (acked != null && current != null && current.startsWith("Stored")) {
+        log.info(fileName + ": late ACK from dstore " + port);
+        op = null;
+      } else if (acked != null) {
+        // quorum reached and the file is being registered, which picks this replica up
+        return;
+      } else if (current == null && op == null) {
+        // dstores shared between shards ack to every controller, the file is another shard's
+        log.debug(fileName + ": ACK for a file this controller does not own");
+        return;
       } else {
         log.error(fileName + ": Non-pending file received ACK");
+        return;
       }
     }
-
-    if (doCountdown) {
-      synchronized (fileCountdownLock) {
-        fileCountdown.get(fileName).countDown();
-      }
+    if (op == null) {
+      if (port != null) addReplicas(fileName, List.of(port));
+      return;
+    }
+    // parts of multipart files are not deduplicated
+    if (hash != null && fileName.equals(MultipartUpload.ownerOf(fileName))) {
+      storeHashes.put(fileName, hash);
     }
+    op.ack();
   }
 
   private void clientLoad(String fileName, Socket client, boolean isFresh) {
+    if (deferInline(fileName, () -> clientLoad(fileName, client, isFresh))) return;
       int clientPort = client.getPort();
     if (isFresh) {
       log.info("LOAD request received for " + fileName);
-      synchronized (fileLoadLock) {
+      synchronized (fileLocks.forKey(fileName)) {
           if (fileLoadLookup.containsKey(fileName)) {
               fileLoadLookup.get(fileName).remove(clientPort);
           }
@@ -294,62 +1016,51 @@ public class Controller {
       log.info("RELOAD request received for " + fileName);
     }
 
-    int dstoreSize;
-    synchronized (storeIndexLock) {
-      dstoreSize = storeIndex.size();
-    }
+    int dstoreSize = storeIndex.size();
     if (dstoreSize == 0) {
       log.error("No dstore joined");
-      try {
-        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-        out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
       return;
     }
 
-    synchronized (fileIndexLock) {
+    synchronized (fileLocks.forKey(fileName)) {
       if (!fileIndex.containsKey(fileName)) {
-        try {
-          PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-          out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+        send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
         log.error(fileName + ": File does not exist");
         return;
       }
+      if (multiparts.containsKey(fileName)) {
+        // no single dstore holds the whole file
+        send(client, Protocol.ERROR_LOAD_TOKEN);
+        log.error(fileName + ": Multipart file, use " + Protocol.LOAD_MULTIPART_TOKEN);
+        return;
+      }
     }
 
     int i = 0;
     int r = numDstoresHasFile(fileName);
-    int fileSize;
+    long fileSize;
     List<String> dstores = dstoresHasFile(fileName);
+    // stable sort, replicas on busy dstores are tried last
+    dstores.sort(Comparator.comparing(overloadedStores::contains));
 
-    synchronized (fileStoreLock) {
-      fileSize = Integer.parseInt(fileStoreLookup.get(fileName).split(" ")[0]);
+    synchronized (fileLocks.forKey(fileName)) {
+      fileSize = Long.parseLong(fileStoreLookup.get(fileName).split(" ")[0]);
     }
 
     boolean isStored;
-    synchronized (fileIndexLock) {
+    synchronized (fileLocks.forKey(fileName)) {
       if (fileIndex.get(fileName).startsWith("Stored")) {
         isStored = true;
       } else {
-        try {
-          PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-          out.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
-
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+        send(client, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
         log.error(fileName + ": Invalid state for loading. Sent file not found exception");
         return;
       }
     }
 
     if (isStored) {
-      synchronized (fileLoadLock) {
+      synchronized (fileLocks.forKey(fileName)) {
         if (fileLoadLookup.containsKey(fileName) && fileLoadLookup.get(fileName).containsKey(clientPort)) {
           i = Integer.parseInt(fileLoadLookup.get(fileName).get(clientPort).split(" ")[1]);
           i++;
@@ -362,34 +1073,19 @@ public class Controller {
 
           if (isFresh) { // this is a fresh serve
             fileLoadLookup.get(fileName).replace(clientPort, "Loading 1 " + r);
-            try {
-              PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-              out.println(Protocol.LOAD_FROM_TOKEN + " " + dstores.get(0) + " " + fileSize);
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
+            send(client, Protocol.LOAD_FROM_TOKEN + " " + dstores.get(0) + " " + fileSize);
             log.info(fileName + ": " + Protocol.LOAD_FROM_TOKEN + " token sent back");
             log.debug(
                 "LOAD FROM token served. Note: A fresh serve with Loading record uncleared. Is this a concurrency situation?");
           } else {
             // genuinely no more dstore to try
-            try {
-              PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-              out.println(Protocol.ERROR_LOAD_TOKEN);
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
+            send(client, Protocol.ERROR_LOAD_TOKEN);
             fileLoadLookup.get(fileName).remove(clientPort);
             log.error(fileName + ": Load failed. No more dstore to try");
           }
         } else {
           fileLoadLookup.get(fileName).replace(clientPort, "Loading " + i + " " + r);
-          try {
-            PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-            out.println(Protocol.LOAD_FROM_TOKEN + " " + dstores.get(i) + " " + fileSize);
-          } catch (IOException e) {
-            e.printStackTrace();
-          }
+          send(client, Protocol.LOAD_FROM_TOKEN + " " + dstores.get(i) + " " + fileSize);
           log.info(fileName + ": " + Protocol.LOAD_FROM_TOKEN + " token sent back");
           log.debug(
               "whole token is " + Protocol.LOAD_FROM_TOKEN + " " + dstores.get(i) + " " + fileSize);
@@ -398,6 +1094,354 @@ public class Controller {
     }
   }
 
+  /**
+   * Start or resume a multipart upload STORE_MULTIPART <filename> <parts>. Replies ACK followed
+   * by the indexes of parts already stored, so an interrupted upload only resends what is missing.
+   * An upload left idle for -Ddss.multipartExpiryMs is aborted.
+   *
+   * @param file - file name
+   * @param parts - number of parts
+   * @param client - client socket
+   */
+  private void clientStoreMultipart(String file, String parts, Socket client) {
+    log.info("STORE_MULTIPART request received for " + file + " in " + parts + " parts");
+    if (!leading(client) || !checkFileName(client, file)) return;
+    int partCount;
+    try {
+      partCount = Integer.parseInt(parts);
+      if (partCount < 1) throw new NumberFormatException("no parts");
+    } catch (NumberFormatException e) {
+      send(client, Protocol.ERROR_BAD_REQUEST_TOKEN);
+      log.warn(file + ": malformed multipart store: " + e.getMessage());
+      return;
+    }
+    if (storeIndex.size() < replicFactor) {
+      send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      log.warn(file + ": Insufficient dstore for multipart upload");
+      return;
+    }
+    MultipartUpload upload;
+    synchronized (fileLocks.forKey(file)) {
+      upload = multiparts.get(file);
+      if (upload != null
+          && !upload.isCommitted()
+          && !upload.isAborted()
+          && upload.getParts() == partCount) {
+        upload.touch();
+        StringBuilder stored = new StringBuilder(Protocol.ACK_TOKEN);
+        for (int i = 0; i < partCount; i++) {
+          if (upload.isPartStored(i)) stored.append(" ").append(i);
+        }
+        send(client, stored.toString());
+        log.info(file + ": resuming multipart upload");
+        return;
+      }
+      if (checkExistedFile(client, fileIndex.containsKey(file), file)) return;
+      // hidden from LIST and LOAD until committed
+      fileIndex.put(file, "Uploading " + partCount);
+      upload = new MultipartUpload(file, partCount);
+      multiparts.put(file, upload);
+    }
+    scheduleExpiry(file, upload, multipartExpiryMs);
+    send(client, Protocol.ACK_TOKEN);
+  }
+
+  private void scheduleExpiry(String file, MultipartUpload upload, long delay) {
+    timers.schedule(() -> multipartExpired(file, upload), delay);
+  }
+
+  /**
+   * Abort an upload that has been idle for too long, or check again once it could have been
+   *
+   * @param file - file name
+   * @param upload - the upload the expiry was set for
+   */
+  private void multipartExpired(String file, MultipartUpload upload) {
+    if (multiparts.get(file) != upload || upload.isCommitted() || upload.isAborted()) return;
+    long idle = upload.idleMillis();
+    if (idle < multipartExpiryMs) {
+      scheduleExpiry(file, upload, multipartExpiryMs - idle);
+      return;
+    }
+    log.warn(file + ": multipart upload idle for " + idle + "ms, aborting");
+    abortMultipart(file, upload, null);
+  }
+
+  /**
+   * Abandon a multipart upload ABORT_MULTIPART <filename>. The parts already stored are removed
+   * from their dstores and the name is freed, then the client gets REMOVE_COMPLETE.
+   *
+   * @param file - file name
+   * @param client - client socket
+   */
+  private void clientAbortMultipart(String file, Socket client) {
+    log.info("ABORT_MULTIPART request received for " + file);
+    if (!leading(client)) return;
+    MultipartUpload upload = multiparts.get(file);
+    if (upload == null || !abortMultipart(file, upload, client)) {
+      send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+      log.error(file + ": No multipart upload in progress");
+    }
+  }
+
+  /**
+   * Stop an upload taking parts, fail the parts still being stored, and remove the rest once none
+   * are left in flight
+   *
+   * @param file - file name
+   * @param upload - upload to abort
+   * @param requester - client to send REMOVE_COMPLETE to, or null
+   * @return false if the upload was no longer in progress
+   */
+  private boolean abortMultipart(String file, MultipartUpload upload, Socket requester) {
+    List<PendingOperation> inFlight = new ArrayList<>();
+    synchronized (fileLocks.forKey(file)) {
+      if (multiparts.get(file) != upload || upload.isCommitted() || upload.isAborted()) {
+        return false;
+      }
+      upload.abort();
+      if (requester != null) fileClientIndex.put(file, requester);
+      for (int part = 0; part < upload.getParts(); part++) {
+        PendingOperation op = pendingStores.get(MultipartUpload.partName(file, part));
+        if (op != null) inFlight.add(op);
+      }
+    }
+    inFlight.forEach(PendingOperation::fail);
+    removeAborted(file, upload);
+    return true;
+  }
+
+  /**
+   * Remove the stored parts of an aborted upload, unless a part store is still finishing, in
+   * which case that store calls this again once it has
+   *
+   * @param file - file name
+   * @param upload - aborted upload
+   */
+  private void removeAborted(String file, MultipartUpload upload) {
+    Map<String, List<String>> objects;
+    synchronized (fileLocks.forKey(file)) {
+      String status = fileIndex.get(file);
+      if (multiparts.get(file) != upload || status == null || !status.startsWith("Uploading")) {
+        return;
+      }
+      for (int part = 0; part < upload.getParts(); part++) {
+        if (pendingStores.containsKey(MultipartUpload.partName(file, part))) return;
+      }
+      objects = startRemove(file, null);
+    }
+    log.info(file + ": removing " + objects.size() + " parts of the aborted upload");
+    if (objects.values().stream().allMatch(List::isEmpty)) {
+      removed(file, objects);
+      return;
+    }
+    sendRemoves(objects);
+  }
+
+  /**
+   * Place one part of a multipart upload STORE_PART <filename> <index> <size>. Replies STORE_TO
+   * like a normal STORE, then STORE_PART_COMPLETE or STORE_PART_FAILED <filename> <index> once
+   * the dstores have acked or the timeout expired. A part may be stored again after a failure.
+   * An index or size that does not parse, or an index outside the upload, gets ERROR_BAD_REQUEST.
+   *
+   * @param file - file name
+   * @param index - part index, from 0
+   * @param partSize - part size in bytes
+   * @param client - client socket
+   */
+  private void clientStorePart(String file, String index, String partSize, Socket client) {
+    if (!leading(client)) return;
+    int part;
+    long size;
+    try {
+      part = Integer.parseInt(index);
+      size = Long.parseLong(partSize);
+      if (part < 0 || size < 0) throw new NumberFormatException("negative index or size");
+    } catch (NumberFormatException e) {
+      send(client, Protocol.ERROR_BAD_REQUEST_TOKEN);
+      log.warn(file + ": malformed part store: " + e.getMessage());
+      return;
+    }
+    String partName = MultipartUpload.partName(file, part);
+    MultipartUpload upload;
+    synchronized (fileLocks.forKey(file)) {
+      upload = multiparts.get(file);
+      if (upload == null || upload.isCommitted() || upload.isAborted()) {
+        send(client, Protocol.STORE_PART_FAILED_TOKEN + " " + file + " " + index);
+        log.error(partName + ": No multipart upload in progress for this part");
+        return;
+      }
+      if (part >= upload.getParts()) {
+        send(client, Protocol.ERROR_BAD_REQUEST_TOKEN);
+        log.warn(partName + ": upload only has " + upload.getParts() + " parts");
+        return;
+      }
+      upload.touch();
+    }
+    // dstores may have left since the upload started
+    if (storeIndex.size() < replicFactor) {
+      send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      log.warn(partName + ": Insufficient dstore for part");
+      return;
+    }
+
+    String storePorts = pickDstores();
+    PendingOperation op =
+        new PendingOperation(
+            replicFactor,
+            () -> {
+              // recorded before it stops being pending, so an abort never misses the part
+              synchronized (fileLocks.forKey(file)) {
+                countFiles(storePorts, 1);
+                fileStoreLookup.put(partName, size + " " + storePorts);
+                upload.partStored(part, size);
+                pendingStores.remove(partName);
+              }
+              send(client, Protocol.STORE_PART_COMPLETE_TOKEN + " " + file + " " + index);
+              log.info(partName + ": stored");
+              if (upload.isAborted()) removeAborted(file, upload);
+            },
+            () -> {
+              synchronized (fileLocks.forKey(file)) {
+                pendingStores.remove(partName);
+              }
+              send(client, Protocol.STORE_PART_FAILED_TOKEN + " " + file + " " + index);
+              log.warn("Timeout while waiting for dstore acks of " + partName);
+              if (upload.isAborted()) removeAborted(file, upload);
+            });
+    synchronized (fileLocks.forKey(file)) {
+      // a second copy would be counted on top of the first, whose replicas are never freed
+      if (upload.isAborted()) {
+        send(client, Protocol.STORE_PART_FAILED_TOKEN + " " + file + " " + index);
+        log.warn(partName + ": upload was aborted");
+        return;
+      }
+      if (pendingStores.containsKey(partName) || upload.isPartStored(part)) {
+        send(client, Protocol.STORE_PART_FAILED_TOKEN + " " + file + " " + index);
+        log.warn(partName + ": Part is already stored or being stored");
+        return;
+      }
+      pendingStores.put(partName, op);
+    }
+    op.start(timers, timeout);
+    send(client, Protocol.STORE_TO_TOKEN + " " + storePorts);
+  }
+
+  /**
+   * Make a multipart file visible once every part is stored COMMIT_MULTIPART <filename>. Replies
+   * STORE_COMPLETE, or ERROR_PARTS_MISSING followed by the missing indexes.
+   *
+   * @param file - file name
+   * @param client - client socket
+   */
+  private void clientCommitMultipart(String file, Socket client) {
+    log.info("COMMIT_MULTIPART request received for " + file);
+    if (!leading(client)) return;
+    String entry;
+    synchronized (fileLocks.forKey(file)) {
+      MultipartUpload upload = multiparts.get(file);
+      if (upload == null || upload.isCommitted()) {
+        send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+        log.error(file + ": No multipart upload in progress");
+        return;
+      }
+      List<Integer> missing = upload.missingParts();
+      if (!missing.isEmpty()) {
+        StringBuilder reply = new StringBuilder(Protocol.ERROR_PARTS_MISSING_TOKEN);
+        for (int part : missing) {
+          reply.append(" ").append(part);
+        }
+        send(client, reply.toString());
+        log.warn(file + ": " + missing.size() + " parts missing at commit");
+        return;
+      }
+      // the manifest and the visible state change together under the file's lock
+      upload.commit();
+      fileStoreLookup.put(file, String.valueOf(upload.totalSize()));
+      fileIndex.replace(file, "Stored");
+      entry = multipartEntry(file, upload);
+    }
+    group.replicate(
+        entry,
+        () -> {
+          send(client, Protocol.STORE_COMPLETE_TOKEN);
+          log.info(file + ": multipart upload committed");
+        },
+        notReplicated(client));
+  }
+
+  /**
+   * Handle load request for a multipart file LOAD_MULTIPART <filename>. Replies with the manifest
+   * MANIFEST <size> <parts> <index>:<size>:<port>,<port> ... in part order.
+   *
+   * @param fileName - file name
+   * @param client - client socket
+   */
+  private void clientLoadMultipart(String fileName, Socket client) {
+    log.info("LOAD_MULTIPART request received for " + fileName);
+    StringBuilder manifest = new StringBuilder(Protocol.MANIFEST_TOKEN);
+    synchronized (fileLocks.forKey(fileName)) {
+      MultipartUpload upload = multiparts.get(fileName);
+      String status = fileIndex.get(fileName);
+      if (upload == null || status == null || !status.startsWith("Stored")) {
+        send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+        log.error(fileName + ": Multipart file does not exist");
+        return;
+      }
+      manifest.append(" ").append(upload.totalSize()).append(" ").append(upload.getParts());
+      for (int part = 0; part < upload.getParts(); part++) {
+        List<String> dstores = dstoresHasFile(MultipartUpload.partName(fileName, part));
+        dstores.sort(Comparator.comparing(overloadedStores::contains));
+        manifest
+            .append(" ")
+            .append(part)
+            .append(":")
+            .append(upload.partSize(part))
+            .append(":")
+            .append(String.join(",", dstores));
+      }
+    }
+    send(client, manifest.toString());
+  }
+
+  /**
+   * Handle parallel load request from client LOAD_ALL <filename>. Replies with every replica so
+   * the client can fetch ranges from several dstores at once: LOAD_FROM_ALL <size> <port> ...
+   *
+   * @param fileName name of the file
+   * @param client client socket
+   */
+  private void clientLoadAll(String fileName, Socket client) {
+    log.info("LOAD_ALL request received for " + fileName);
+    if (deferInline(fileName, () -> clientLoadAll(fileName, client))) return;
+    if (storeIndex.isEmpty()) {
+      log.error("No dstore joined");
+      send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+      return;
+    }
+
+    String lookup;
+    synchronized (fileLocks.forKey(fileName)) {
+      String status = fileIndex.get(fileName);
+      lookup = fileStoreLookup.get(fileName);
+      if (status == null || !status.startsWith("Stored") || lookup == null) {
+        send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+        log.error(fileName + ": File does not exist");
+        return;
+      }
+      if (multiparts.containsKey(fileName)) {
+        send(client, Protocol.ERROR_LOAD_TOKEN);
+        log.error(fileName + ": Multipart file, use " + Protocol.LOAD_MULTIPART_TOKEN);
+        return;
+      }
+    }
+    List<String> dstores = new ArrayList<>(Arrays.asList(lookup.split(" ")));
+    String fileSize = dstores.remove(0);
+    dstores.sort(Comparator.comparing(overloadedStores::contains));
+    send(client, Protocol.LOAD_FROM_ALL_TOKEN + " " + fileSize + " " + String.join(" ", dstores));
+    log.info(fileName + ": " + Protocol.LOAD_FROM_ALL_TOKEN + " token sent back");
+  }
+
   /**
    * Remove file from dstore
    *
@@ -406,89 +1450,155 @@ public class Controller {
    */
   private void clientRemove(String fileName, Socket client) {
     log.info("REMOVE request received for " + fileName);
+    if (!leading(client)) return;
+    if (deferInline(fileName, () -> clientRemove(fileName, client))) return;
 
-    int dstoreSize;
-    synchronized (storeIndexLock) {
-      dstoreSize = storeIndex.size();
-    }
+    int dstoreSize = storeIndex.size();
     if (dstoreSize == 0) {
       log.error("No dstore joined");
-      try {
-        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-        out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
       return;
     }
 
-    synchronized (fileIndexLock) {
-      if (!fileIndex.containsKey(fileName)) {
-        try {
-          PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-          out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+    Map<String, List<String>> objects;
+    synchronized (fileLocks.forKey(fileName)) {
+      String status = fileIndex.get(fileName);
+      if (status == null || !status.startsWith("Stored")) {
+        // files mid-STORE or mid-REMOVE are not visible to clients
+        send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
         log.warn(fileName + ": File does not exist");
         return;
       }
+      objects = startRemove(fileName, client);
     }
+    sendRemoves(objects);
+  }
 
-    int dstores = numDstoresHasFile(fileName);
-    List<String> dstorePorts = dstoresHasFile(fileName);
-
-    synchronized (fileIndexLock) {
-      if (fileIndex.get(fileName).startsWith("Stored")) {
-        fileIndex.replace(fileName, "Removing 0 " + dstores);
+  /**
+   * Remove a file again whose REMOVE timed out. It stays invisible to clients, and its name
+   * cannot be stored again, until the removal completes.
+   *
+   * @param fileName - file name
+   */
+  private void retryRemove(String fileName) {
+    Map<String, List<String>> objects;
+    synchronized (fileLocks.forKey(fileName)) {
+      String status = fileIndex.get(fileName);
+      if (status == null || !status.startsWith("Removing") || pendingRemoves.containsKey(fileName)) {
+        return;
       }
+      objects = startRemove(fileName, null);
+    }
+    log.info(fileName + ": retrying REMOVE that timed out");
+    if (objects.values().stream().allMatch(List::isEmpty)) {
+      // every replica was already found gone
+      removed(fileName, objects);
+      return;
     }
+    sendRemoves(objects);
+  }
 
-    synchronized (fileClientLock) {
-      fileClientIndex.put(fileName, client);
+  /**
+   * Mark a file as being removed and wait for the dstores holding it to ack. Called with the
+   * file's lock held.
+   *
+   * @param fileName - file name
+   * @param requester - client to send REMOVE_COMPLETE to, or null
+   * @return object on the dstores -> dstores holding it, one entry per part for multipart files
+   */
+  private Map<String, List<String>> startRemove(String fileName, Socket requester) {
+    Map<String, List<String>> objects = new LinkedHashMap<>();
+    MultipartUpload upload = multiparts.get(fileName);
+    if (upload == null) {
+      objects.put(fileName, dstoresHasFile(fileName));
+    } else {
+      for (int part = 0; part < upload.getParts(); part++) {
+        // an aborted upload may not have all its parts
+        if (!upload.isPartStored(part)) continue;
+        String partName = MultipartUpload.partName(fileName, part);
+        objects.put(partName, dstoresHasFile(partName));
+      }
     }
+    int dstores = objects.values().stream().mapToInt(List::size).sum();
+    fileIndex.replace(fileName, "Removing 0 " + dstores);
+    if (requester != null) fileClientIndex.put(fileName, requester);
+    if (dstores == 0) return objects;
+
+    PendingOperation op =
+        new PendingOperation(
+            dstores,
+            () -> removed(fileName, objects),
+            () -> {
+              log.error(fileName + ": REMOVE timed out");
+              pendingRemoves.remove(fileName);
+              synchronized (fileLocks.forKey(fileName)) {
+                fileClientIndex.remove(fileName);
+              }
+            });
+    pendingRemoves.put(fileName, op);
+    op.start(timers, timeout);
+    return objects;
+  }
 
-    synchronized (storeIndexLock) {
-      for (String port : dstorePorts) {
+  private void sendRemoves(Map<String, List<String>> objects) {
+    for (Map.Entry<String, List<String>> object : objects.entrySet()) {
+      for (String port : object.getValue()) {
         Socket dstore = storeIndex.get(port);
-        try {
-          PrintWriter out = new PrintWriter(dstore.getOutputStream(), true);
-          out.println(Protocol.REMOVE_TOKEN + " " + fileName);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+        if (dstore != null) send(dstore, Protocol.REMOVE_TOKEN + " " + object.getKey());
       }
     }
-    CountDownLatch latch = new CountDownLatch(dstores);
-    boolean isComplete = false;
-    synchronized (removeCountdownLock) {
-      removeCountdown.put(fileName, latch);
-    }
-    try {
-      isComplete = latch.await(timeout, TimeUnit.MILLISECONDS);
-    } catch (InterruptedException e) {
-      log.error("Latch interrupted while waiting for REMOVE ack");
-    }
-    if (!isComplete) {
-      log.error(fileName + ": REMOVE timed out");
-      synchronized (fileClientIndex) {
-        fileClientIndex.remove(fileName);
+  }
+
+  /**
+   * Forget a file once every dstore holding it has removed it, and tell the client if one asked
+   *
+   * @param fileName - file name
+   * @param objects - objects that were on the dstores, and where
+   */
+  private void removed(String fileName, Map<String, List<String>> objects) {
+    pendingRemoves.remove(fileName);
+    Socket requester;
+    synchronized (fileLocks.forKey(fileName)) {
+      fileIndex.remove(fileName);
+      fileStoreLookup.remove(fileName);
+      multiparts.remove(fileName);
+      // an overdue inline file is removed wherever it got to
+      inlinePending.remove(fileName);
+      inlineCache.remove(fileName);
+      if (dedup) contentIndex.release(fileName);
+      for (Map.Entry<String, List<String>> object : objects.entrySet()) {
+        fileStoreLookup.remove(object.getKey());
+        if (!object.getValue().isEmpty()) countFiles(String.join(" ", object.getValue()), -1);
       }
+      requester = fileClientIndex.remove(fileName);
     }
+    log.info(fileName + ": Removed");
+    // Notify client
+    group.replicate(
+        Protocol.REMOVED_TOKEN + " " + fileName,
+        () -> {
+          if (requester != null) send(requester, Protocol.REMOVE_COMPLETE_TOKEN);
+        },
+        notReplicated(requester));
   }
 
   private int numDstoresHasFile(String fileName) {
     int dstores;
-    synchronized (fileStoreLock) {
+    synchronized (fileLocks.forKey(MultipartUpload.ownerOf(fileName))) {
       dstores = fileStoreLookup.get(fileName).split(" ").length - 1;
     }
     return dstores;
   }
 
+  /**
+   * Dstores holding an object. Parts of a multipart file are guarded by the file's lock.
+   *
+   * @param fileName - file or part object name
+   * @return dstore ports
+   */
   private List<String> dstoresHasFile(String fileName) {
     List<String> dstorePorts;
-    synchronized (fileStoreLock) {
+    synchronized (fileLocks.forKey(MultipartUpload.ownerOf(fileName))) {
       dstorePorts =
           new LinkedList<>(Arrays.stream(fileStoreLookup.get(fileName).split(" ")).toList());
     }
@@ -496,47 +1606,597 @@ public class Controller {
     return dstorePorts;
   }
 
-  private void dstoreRmAck(String fileName) {
-    String[] status = null;
-    synchronized (fileIndexLock) {
-      if (fileIndex.get(fileName).startsWith("Removing")) {
-        status = fileIndex.get(fileName).split(" ");
-      } else {
+  /**
+   * Handle REMOVE_ACK <filename> from a dstore, or ERROR_FILE_DOES_NOT_EXIST <filename> when it
+   * did not hold the object, which leaves it just as removed
+   *
+   * @param objectName - file or part object name
+   * @param dstore - dstore socket
+   */
+  private void dstoreRmAck(String objectName, Socket dstore) {
+    if (!group.isLeader()) return;
+    if (purges.remove(storePorts.get(dstore) + " " + objectName)) {
+      log.info(objectName + ": removed from dstore " + storePorts.get(dstore));
+      return;
+    }
+    // acks for the parts of a multipart file count towards the file itself
+    String fileName = MultipartUpload.ownerOf(objectName);
+    PendingOperation op;
+    synchronized (fileLocks.forKey(fileName)) {
+      String status = fileIndex.get(fileName);
+      op = pendingRemoves.get(fileName);
+      if (op == null || status == null || !status.startsWith("Removing")) {
         log.error(fileName + ": Invalid state for remove ack");
+        return;
+      }
+      String[] counts = status.split(" ");
+      int i = Integer.parseInt(counts[1]);
+      int r = Integer.parseInt(counts[2]);
+      i++;
+      fileIndex.replace(fileName, "Removing " + i + " " + r);
+      log.info(fileName + ": " + i + "/" + r + " ACKs received");
+    }
+    op.ack();
+  }
+
+  /** Run an anti-entropy round every rebalance period while leading */
+  private void antiEntropyLoop() {
+    while (true) {
+      try {
+        Thread.sleep(rebalance * 1000L);
+      } catch (InterruptedException e) {
+        return;
       }
+      if (group.isLeader()) antiEntropy();
     }
-    int i = Integer.parseInt(status[1]);
-    int r = Integer.parseInt(status[2]);
-    i++;
-    if (i == r) {
-      synchronized (removeCountdownLock) {
-        removeCountdown.get(fileName).countDown();
+  }
+
+  /**
+   * Anti-entropy round: retry removals that timed out, give up on dstores that have been gone
+   * since the last round, and ask every other dstore for a digest of what it holds, DIGEST
+   * <buckets>. The replies are compared with the index as they arrive.
+   */
+  private void antiEntropy() {
+    for (Map.Entry<String, String> file : fileIndex.entrySet()) {
+      if (file.getValue().startsWith("Removing") && !pendingRemoves.containsKey(file.getKey())) {
+        retryRemove(file.getKey());
       }
-      fileIndex.remove(fileName);
-      synchronized (fileClientIndex) {
-        // Notify client
-        Socket client = fileClientIndex.get(fileName);
-        try {
-          PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-          out.println(Protocol.REMOVE_COMPLETE_TOKEN);
+    }
+    for (Map.Entry<String, Socket> store : storeIndex.entrySet()) {
+      String port = store.getKey();
+      if (!storePorts.containsKey(store.getValue())) {
+        storeGone(port, store.getValue());
+        continue;
+      }
+      lostStores.remove(port);
+      int buckets = StoreDigest.bucketsFor(expectedFiles(port).size());
+      digestBuckets.put(port, buckets);
+      send(store.getValue(), Protocol.DIGEST_TOKEN + " " + buckets);
+    }
+  }
+
+  /**
+   * Objects the index places on a dstore, with their sizes
+   *
+   * @param port - dstore port
+   * @return object name -> size
+   */
+  private Map<String, Long> expectedFiles(String port) {
+    Map<String, Long> files = new HashMap<>();
+    for (Map.Entry<String, String> object : fileStoreLookup.entrySet()) {
+      String[] lookup = object.getValue().split(" ");
+      for (int i = 1; i < lookup.length; i++) {
+        if (lookup[i].equals(port)) files.put(object.getKey(), Long.parseLong(lookup[0]));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Handle DIGEST <digest> ... from a dstore: ask for the files of the buckets that differ from
+   * the index, DIGEST_FILES <buckets> <bucket> ..., a bounded number of them per round
+   *
+   * @param args - DIGEST message
+   * @param dstore - dstore socket
+   */
+  private void storeDigest(String[] args, Socket dstore) {
+    if (!group.isLeader()) return;
+    String port = storePorts.get(dstore);
+    Integer buckets = port == null ? null : digestBuckets.get(port);
+    if (buckets == null || args.length - 1 != buckets) {
+      log.error("Unexpected " + Protocol.DIGEST_TOKEN + " from dstore " + port);
+      return;
+    }
+    List<Integer> differing =
+        StoreDigest.differing(
+            StoreDigest.digest(expectedFiles(port), buckets), StoreDigest.decode(args));
+    if (differing.isEmpty()) {
+      log.debug("Dstore " + port + " agrees with the index");
+      digestBuckets.remove(port);
+      suspects.remove(port);
+      return;
+    }
+    log.info("Dstore " + port + ": " + differing.size() + "/" + buckets + " buckets differ");
+    // lowest buckets first, so the next round looks at the same ones again
+    differing = differing.subList(0, Math.min(differing.size(), DIGEST_BUCKETS_PER_ROUND));
+    differingBuckets.put(port, new HashSet<>(differing));
+    send(
+        dstore,
+        Protocol.DIGEST_FILES_TOKEN
+            + " "
+            + buckets
+            + " "
+            + differing.stream().map(String::valueOf).collect(Collectors.joining(" ")));
+  }
+
+  /**
+   * Handle DIGEST_FILES <filename> <size> ... from a dstore: compare the files it holds in the
+   * differing buckets with those the index places there. A disagreement is only repaired when
+   * the round before found it too, so stores, removals and repairs in flight are left alone.
+   *
+   * @param args - DIGEST_FILES message
+   * @param dstore - dstore socket
+   */
+  private void storeDigestFiles(String[] args, Socket dstore) {
+    if (!group.isLeader()) return;
+    String port = storePorts.get(dstore);
+    Integer buckets = port == null ? null : digestBuckets.remove(port);
+    Set<Integer> listed = port == null ? null : differingBuckets.remove(port);
+    if (buckets == null || listed == null) {
+      log.error("Unexpected " + Protocol.DIGEST_FILES_TOKEN + " from dstore " + port);
+      return;
+    }
+    Map<String, Long> held = new HashMap<>();
+    for (int i = 1; i + 1 < args.length; i += 2) {
+      held.put(args[i], Long.parseLong(args[i + 1]));
+    }
+    Map<String, Long> indexed = expectedFiles(port);
+    indexed.keySet().removeIf(object -> !listed.contains(StoreDigest.bucketOf(object, buckets)));
+    Set<String> objects = new HashSet<>(held.keySet());
+    objects.addAll(indexed.keySet());
+
+    Set<String> found = new HashSet<>();
+    for (String object : objects) {
+      if (!Objects.equals(held.get(object), indexed.get(object))) {
+        found.add(object + " " + held.get(object) + " " + indexed.get(object));
+      }
+    }
+    Set<String> previous = suspects.put(port, found);
+    for (String object : objects) {
+      if (previous != null
+          && previous.contains(object + " " + held.get(object) + " " + indexed.get(object))) {
+        reconcile(port, object, held.get(object), indexed.get(object));
+      }
+    }
+  }
 
-        } catch (IOException e) {
-          e.printStackTrace();
+  /**
+   * Repair one disagreement between the index and a dstore
+   *
+   * @param port - dstore port
+   * @param object - file or part object name
+   * @param held - size of the object on the dstore, or null if it does not hold it
+   * @param indexed - size the index places on the dstore, or null if it places nothing
+   */
+  private void reconcile(String port, String object, Long held, Long indexed) {
+    String owner = MultipartUpload.ownerOf(object);
+    String status;
+    String lookup;
+    synchronized (fileLocks.forKey(owner)) {
+      status = fileIndex.get(owner);
+      lookup = fileStoreLookup.get(object);
+    }
+    if (status == null) {
+      // left by a STORE that timed out or acked after its REMOVE, unless another shard owns it
+      if (sharedDstores) return;
+      log.warn(object + ": orphan on dstore " + port);
+      purge(port, object);
+      return;
+    }
+    if (!status.startsWith("Stored")
+        || storeReplicas.containsKey(object)
+        || inlinePending.containsKey(object)) {
+      // still being stored or removed
+      return;
+    }
+    if (indexed != null) {
+      // missing, or a different size than stored
+      dropReplica(object, port);
+      if (held != null) purge(port, object);
+      return;
+    }
+    if (lookup == null || multiparts.containsKey(object)) {
+      log.warn(object + ": unknown object on dstore " + port);
+      purge(port, object);
+      return;
+    }
+    String[] holders = lookup.split(" ");
+    if (held == Long.parseLong(holders[0]) && holders.length - 1 < replicFactor) {
+      // a replica that acked too late is as good as a repaired one
+      log.info(object + ": adopting replica on dstore " + port);
+      addReplicas(object, List.of(port));
+    } else if (!underReplicated.contains(object)) {
+      // a surplus copy, unless a repair is still writing it
+      log.warn(object + ": surplus copy on dstore " + port);
+      purge(port, object);
+    }
+  }
+
+  /**
+   * Remove an object from one dstore without touching the index
+   *
+   * @param port - dstore port
+   * @param object - file or part object name
+   */
+  private void purge(String port, String object) {
+    Socket dstore = storeIndex.get(port);
+    if (dstore == null || !purges.add(port + " " + object)) return;
+    send(dstore, Protocol.REMOVE_TOKEN + " " + object);
+  }
+
+  /**
+   * Forget a replica a dstore no longer holds and queue the object for repair. The last replica
+   * of a stored object stays in the index, there is nothing left to repair it from.
+   *
+   * @param object - file or part object name
+   * @param port - dstore port
+   */
+  private void dropReplica(String object, String port) {
+    String owner = MultipartUpload.ownerOf(object);
+    String entry;
+    boolean stored;
+    synchronized (fileLocks.forKey(owner)) {
+      String status = fileIndex.get(owner);
+      String lookup = fileStoreLookup.get(object);
+      // inline files not yet written are only expected on their dstores once they are
+      if (status == null || lookup == null || inlinePending.containsKey(object)) return;
+      stored = status.startsWith("Stored");
+      List<String> holders = new ArrayList<>(Arrays.asList(lookup.split(" ")));
+      String size = holders.remove(0);
+      if (!holders.remove(port)) return;
+      if (holders.isEmpty() && stored) {
+        log.error(object + ": lost on every dstore but " + port);
+        return;
+      }
+      fileStoreLookup.put(object, holders.isEmpty() ? size : size + " " + String.join(" ", holders));
+      // replica counts of loads in progress no longer hold
+      fileLoadLookup.remove(object);
+      // the content is no longer where the index says, new stores of it must not link to it
+      if (dedup) contentIndex.release(object);
+      entry = stored ? entryOf(owner) : null;
+    }
+    log.warn(object + ": replica on dstore " + port + " lost");
+    countFiles(port, -1);
+    if (entry == null) return;
+    underReplicated.add(object);
+    scheduleRepair();
+    group.replicate(entry);
+  }
+
+  /**
+   * Give up on a dstore whose connection was gone at this round and the last: forget it, and
+   * re-replicate what it held. A dstore that rejoins in between is kept.
+   *
+   * @param port - dstore port
+   * @param dstore - its closed socket
+   */
+  private void storeGone(String port, Socket dstore) {
+    if (lostStores.put(port, dstore) != dstore) {
+      log.warn("Dstore " + port + " has left, waiting a round for it to rejoin");
+      return;
+    }
+    lostStores.remove(port);
+    if (!storeIndex.remove(port, dstore)) return;
+    log.error("Dstore " + port + " is gone, re-replicating its files");
+    synchronized (storeFileCountLock) {
+      storeFileCount.remove(port);
+    }
+    overloadedStores.remove(port);
+    suspects.remove(port);
+    purges.removeIf(purge -> purge.startsWith(port + " "));
+    for (Map.Entry<String, String> object : fileStoreLookup.entrySet()) {
+      List<String> lookup = Arrays.asList(object.getValue().split(" "));
+      if (lookup.subList(1, lookup.size()).contains(port)) dropReplica(object.getKey(), port);
+    }
+  }
+
+  /**
+   * Replicated form of a stored file, STORED <filename> <size> <sha256 or -> <port> ... Called
+   * with the file's lock held.
+   */
+  private String storedEntry(String file) {
+    String hash = contentIndex.hashOf(file);
+    String[] lookup = fileStoreLookup.get(file).split(" ", 2);
+    return Protocol.STORED_TOKEN
+        + " "
+        + file
+        + " "
+        + lookup[0]
+        + " "
+        + (hash == null ? "-" : hash)
+        + " "
+        + lookup[1];
+  }
+
+  /**
+   * Replicated form of a stored file, whichever kind it is. Called with the file's lock held.
+   */
+  private String entryOf(String file) {
+    InlineFile inline = inlinePending.get(file);
+    if (inline != null) {
+      // INLINED <filename> <size> <base64> <port> ...
+      return Protocol.INLINED_TOKEN
+          + " "
+          + file
+          + " "
+          + inline.data.length
+          + " "
+          + Base64.getEncoder().encodeToString(inline.data)
+          + " "
+          + inline.ports();
+    }
+    MultipartUpload upload = multiparts.get(file);
+    return upload != null ? multipartEntry(file, upload) : storedEntry(file);
+  }
+
+  /**
+   * Handle KEYS from a shard router: every file name this controller holds metadata for,
+   * including files being stored or removed
+   *
+   * @param client - router socket
+   */
+  private void listKeys(Socket client) {
+    StringBuilder reply = new StringBuilder(Protocol.KEYS_TOKEN);
+    for (String file : fileIndex.keySet()) {
+      reply.append(" ").append(file);
+    }
+    send(client, reply.toString());
+  }
+
+  /**
+   * Handle EXPORT <filename> from a shard router moving the file to another shard. Replies ENTRY
+   * with the file's metadata, BUSY while a STORE or REMOVE is in progress, or
+   * ERROR_FILE_DOES_NOT_EXIST. An inline file not yet on its dstores moves with its content, for
+   * the new shard to write out.
+   *
+   * @param fileName - file name
+   * @param client - router socket
+   */
+  private void exportFile(String fileName, Socket client) {
+    String reply;
+    synchronized (fileLocks.forKey(fileName)) {
+      String status = fileIndex.get(fileName);
+      if (status == null) {
+        reply = Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN;
+      } else if (!status.startsWith("Stored")) {
+        reply = Protocol.BUSY_TOKEN;
+      } else {
+        reply = Protocol.ENTRY_TOKEN + " " + entryOf(fileName);
+      }
+    }
+    send(client, reply);
+  }
+
+  /**
+   * Handle IMPORT <entry> from a shard router: take over a file moved from another shard. The
+   * file data stays on the shared dstores, only the metadata moves.
+   *
+   * @param entry - STORED, MULTIPART or INLINED entry as exported
+   * @param client - router socket
+   */
+  private void importFile(String entry, Socket client) {
+    if (!leading(client)) return;
+    String fileName = entry.split(" ")[1];
+    synchronized (fileLocks.forKey(fileName)) {
+      if (checkExistedFile(client, fileIndex.containsKey(fileName), fileName)) return;
+      metadata.apply(entry);
+    }
+    metadata.recountFiles();
+    log.info(fileName + ": imported from another shard");
+    group.replicate(entry, () -> send(client, Protocol.ACK_TOKEN), notReplicated(client));
+  }
+
+  /**
+   * Handle DROP <filename> [BUSY] from a shard router once the file lives on another shard.
+   * Forgets the metadata without touching the dstores, and replies ACK. With BUSY the router is
+   * abandoning a file that would not settle: a STORE still in progress is failed first so it
+   * cannot register the file again later, and a file that got stored after all is not dropped
+   * but answered with its ENTRY, to be moved like any other.
+   *
+   * @param fileName - file name
+   * @param busy - only drop the file if it is not stored
+   * @param client - router socket
+   */
+  private void dropFile(String fileName, boolean busy, Socket client) {
+    if (!leading(client)) return;
+    if (busy) cancelStores(fileName);
+    String entry = Protocol.REMOVED_TOKEN + " " + fileName;
+    InlineFile inline;
+    synchronized (fileLocks.forKey(fileName)) {
+      String status = fileIndex.get(fileName);
+      if (busy && status != null && status.startsWith("Stored")) {
+        send(client, Protocol.ENTRY_TOKEN + " " + entryOf(fileName));
+        return;
+      }
+      inline = inlinePending.get(fileName);
+      metadata.apply(entry);
+      fileClientIndex.remove(fileName);
+    }
+    // requests held back for an inline file now find it on its new shard
+    if (inline != null) inline.waiters.forEach(Runnable::run);
+    metadata.recountFiles();
+    log.info(fileName + ": handed over to another shard");
+    group.replicate(entry, () -> send(client, Protocol.ACK_TOKEN), notReplicated(client));
+  }
+
+  /**
+   * Fail the STOREs in progress for a file, including those of its parts, as if they timed out
+   *
+   * @param fileName - file name
+   */
+  private void cancelStores(String fileName) {
+    List<String> objects = new ArrayList<>(List.of(fileName));
+    synchronized (fileLocks.forKey(fileName)) {
+      MultipartUpload upload = multiparts.get(fileName);
+      if (upload != null) {
+        for (int part = 0; part < upload.getParts(); part++) {
+          objects.add(MultipartUpload.partName(fileName, part));
         }
       }
-      log.info(fileName + ": Removed");
-    } else {
-      synchronized (fileIndexLock) {
-        fileIndex.replace(fileName, "Removing " + i + " " + r);
+    }
+    for (String object : objects) {
+      PendingOperation op = pendingStores.get(object);
+      if (op != null && op.fail()) log.warn(object + ": store cancelled");
+    }
+  }
+
+  /**
+   * Replicated form of a committed multipart file, MULTIPART <filename> <parts>
+   * <index>:<size>:<port>,<port> ... Called with the file's lock held.
+   */
+  private String multipartEntry(String file, MultipartUpload upload) {
+    StringBuilder entry = new StringBuilder(Protocol.MULTIPART_TOKEN);
+    entry.append(" ").append(file).append(" ").append(upload.getParts());
+    for (int part = 0; part < upload.getParts(); part++) {
+      String partName = MultipartUpload.partName(file, part);
+      entry
+          .append(" ")
+          .append(part)
+          .append(":")
+          .append(upload.partSize(part))
+          .append(":")
+          .append(String.join(",", dstoresHasFile(partName)));
+    }
+    return entry.toString();
+  }
+
+  /**
+   * File metadata as replicated across the controller group: stored files with their dstores,
+   * committed multipart files and content hashes. Uploads and removals in progress stay with the
+   * leader; a client caught by a failover retries against the new leader.
+   */
+  private final class Metadata implements ControllerGroup.StateMachine {
+    @Override
+    public void apply(String entry) {
+      String[] args = entry.split(" ");
+      String file = args[1];
+      switch (args[0]) {
+        case Protocol.STORED_TOKEN -> {
+          String ports = String.join(" ", Arrays.copyOfRange(args, 4, args.length));
+          InlineFile inline;
+          synchronized (fileLocks.forKey(file)) {
+            fileStoreLookup.put(file, args[2] + " " + ports);
+            fileIndex.put(file, "Stored");
+            inline = inlinePending.remove(file);
+          }
+          if (dedup && !args[3].equals("-")) {
+            contentIndex.add(args[3], file, Long.parseLong(args[2]), ports);
+          }
+          // requests held back while the file was inline
+          if (inline != null) inline.waiters.forEach(Runnable::run);
+        }
+        case Protocol.INLINED_TOKEN -> {
+          byte[] data = Base64.getDecoder().decode(args[3]);
+          String ports = String.join(" ", Arrays.copyOfRange(args, 4, args.length));
+          synchronized (fileLocks.forKey(file)) {
+            inlinePending.put(file, new InlineFile(data, ports));
+            fileStoreLookup.put(file, args[2] + " " + ports);
+            fileIndex.put(file, "Stored");
+          }
+          inlineCache.put(file, data);
+        }
+        case Protocol.MULTIPART_TOKEN -> {
+          MultipartUpload upload = new MultipartUpload(file, Integer.parseInt(args[2]));
+          synchronized (fileLocks.forKey(file)) {
+            for (int i = 3; i < args.length; i++) {
+              String[] part = args[i].split(":");
+              int index = Integer.parseInt(part[0]);
+              upload.partStored(index, Long.parseLong(part[1]));
+              fileStoreLookup.put(
+                  MultipartUpload.partName(file, index),
+                  part[1] + " " + (part.length > 2 ? part[2].replace(',', ' ') : ""));
+            }
+            upload.commit();
+            multiparts.put(file, upload);
+            fileStoreLookup.put(file, String.valueOf(upload.totalSize()));
+            fileIndex.put(file, "Stored");
+          }
+        }
+        case Protocol.REMOVED_TOKEN -> {
+          synchronized (fileLocks.forKey(file)) {
+            MultipartUpload upload = multiparts.remove(file);
+            if (upload != null) {
+              for (int part = 0; part < upload.getParts(); part++) {
+                fileStoreLookup.remove(MultipartUpload.partName(file, part));
+              }
+            }
+            fileStoreLookup.remove(file);
+            fileIndex.remove(file);
+            inlinePending.remove(file);
+          }
+          inlineCache.remove(file);
+          if (dedup) contentIndex.release(file);
+        }
+        default -> log.error("Invalid replicated entry: " + entry);
+      }
+    }
+
+    @Override
+    public void reset() {
+      fileIndex.clear();
+      fileStoreLookup.clear();
+      multiparts.clear();
+      contentIndex.clear();
+      inlinePending.clear();
+      inlineCache.clear();
+    }
+
+    @Override
+    public List<String> snapshot() {
+      List<String> entries = new ArrayList<>();
+      for (String file : fileIndex.keySet()) {
+        synchronized (fileLocks.forKey(file)) {
+          String status = fileIndex.get(file);
+          // a file being removed is still stored until its REMOVED entry follows
+          if (status == null || !(status.startsWith("Stored") || status.startsWith("Removing"))) {
+            continue;
+          }
+          entries.add(entryOf(file));
+        }
       }
-      synchronized (removeCountdownLock) {
-        removeCountdown.get(fileName).countDown();
+      return entries;
+    }
+
+    @Override
+    public void promoted() {
+      // placement counts were not kept while following
+      recountFiles();
+    }
+
+    /** Rebuild the per-dstore placement counts from the lookups */
+    private void recountFiles() {
+      synchronized (storeFileCountLock) {
+        storeFileCount.replaceAll((port, count) -> 0);
+        for (String lookup : fileStoreLookup.values()) {
+          String[] ports = lookup.split(" ");
+          for (int i = 1; i < ports.length; i++) {
+            storeFileCount.computeIfPresent(ports[i], (port, count) -> count + 1);
+          }
+        }
       }
-      log.info(fileName + ": " + i + "/" + r + " ACKs received");
     }
   }
 
   public void start() {
+    group.start();
+    if (rebalance > 0) {
+      Thread antiEntropy = new Thread(this::antiEntropyLoop);
+      antiEntropy.setDaemon(true);
+      antiEntropy.start();
+    }
+    Thread inlineWriter = new Thread(this::inlineLoop);
+    inlineWriter.setDaemon(true);
+    inlineWriter.start();
     while (true) {
       try {
         Socket client = ss.accept();
@@ -553,11 +2213,51 @@ public class Controller {
                         case Protocol.JOIN_TOKEN -> storeJoin(args[1], client);
                         case Protocol.LIST_TOKEN -> listFiles(client);
                         case Protocol.STORE_TOKEN -> clientStore(args[1], args[2], client);
-                        case Protocol.STORE_ACK_TOKEN -> storeAck(args[1]);
+                        case Protocol.STORE_ACK_TOKEN ->
+                            storeAck(args[1], args.length > 2 ? args[2] : null, client);
+                        case Protocol.LINK_FAILED_TOKEN -> linkFailed(args[1], client);
+                        case Protocol.STORE_HASHED_TOKEN ->
+                            clientStoreHashed(args[1], args[2], args[3], client);
                         case Protocol.LOAD_TOKEN -> clientLoad(args[1], client, true);
                         case Protocol.RELOAD_TOKEN -> clientLoad(args[1], client, false);
+                        case Protocol.LOAD_ALL_TOKEN -> clientLoadAll(args[1], client);
+                        case Protocol.STORE_INLINE_TOKEN ->
+                            clientStoreInline(
+                                args[1], args[2], args.length > 3 ? args[3] : "", client);
+                        case Protocol.LOAD_INLINE_TOKEN -> clientLoadInline(args[1], client);
+                        case Protocol.STORE_MULTIPART_TOKEN ->
+                            clientStoreMultipart(args[1], args[2], client);
+                        case Protocol.STORE_PART_TOKEN ->
+                            clientStorePart(args[1], args[2], args[3], client);
+                        case Protocol.COMMIT_MULTIPART_TOKEN ->
+                            clientCommitMultipart(args[1], client);
+                        case Protocol.LOAD_MULTIPART_TOKEN -> clientLoadMultipart(args[1], client);
+                        case Protocol.ABORT_MULTIPART_TOKEN ->
+                            clientAbortMultipart(args[1], client);
                         case Protocol.REMOVE_TOKEN -> clientRemove(args[1], client);
-                        case Protocol.REMOVE_ACK_TOKEN -> dstoreRmAck(args[1]);
+                        case Protocol.REMOVE_ACK_TOKEN,
+                            Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN ->
+                            dstoreRmAck(args[1], client);
+                        case Protocol.REBALANCE_COMPLETE_TOKEN -> rebalanceComplete(client);
+                        case Protocol.DIGEST_TOKEN -> storeDigest(args, client);
+                        case Protocol.DIGEST_FILES_TOKEN -> storeDigestFiles(args, client);
+                        case Protocol.OVERLOADED_TOKEN -> storeLoad(args[1], true);
+                        case Protocol.AVAILABLE_TOKEN -> storeLoad(args[1], false);
+                        case Protocol.KEYS_TOKEN -> listKeys(client);
+                        case Protocol.EXPORT_TOKEN -> exportFile(args[1], client);
+                        case Protocol.IMPORT_TOKEN ->
+                            importFile(line.substring(Protocol.IMPORT_TOKEN.length() + 1), client);
+                        case Protocol.DROP_TOKEN ->
+                            dropFile(
+                                args[1],
+                                args.length > 2 && args[2].equals(Protocol.BUSY_TOKEN),
+                                client);
+                        case Protocol.PEER_TOKEN,
+                            Protocol.HEARTBEAT_TOKEN,
+                            Protocol.REPL_TOKEN,
+                            Protocol.SNAPSHOT_TOKEN,
+                            Protocol.SNAPSHOT_END_TOKEN ->
+                            group.receive(line, client);
                         default -> {
                           log.error("Invalid Token");
                           log.error(line);
@@ -566,6 +2266,9 @@ public class Controller {
                     }
                   } catch (IOException e) {
                     e.printStackTrace();
+                  } finally {
+                    channels.remove(client);
+                    storePorts.remove(client);
                   }
                 });
         t.start();
@@ -0,0 +1,525 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Active/standby group of controllers sharing the file metadata. One controller leads: it alone
+ * accepts writes and streams every metadata change to the others as a numbered REPL entry,
+ * completing the client's request once a majority of the group holds it. Followers apply the
+ * entries in order and serve reads (LIST, LOAD) from their copy; one that falls behind or joins
+ * late asks the leader for a SNAPSHOT of the whole state.
+ *
+ * <p>Leadership is a lease kept alive by heartbeats. A controller that hears nothing from the
+ * leader for a lease period considers it gone, and the most up to date live controller, ties
+ * going to the first in {@code dss.peers}, takes over under a new epoch if it can see a majority
+ * of the group. This is a simplified lease protocol for crash-stop failures on a trusted network,
+ * not Raft: a leader cut off from the majority keeps serving writes until its own lease check
+ * notices, at most one lease period later.
+ *
+ * <p>Configured with {@code dss.peers}, the comma separated ports of every controller in the group
+ * (all on this host), plus optional {@code dss.heartbeatMs} and {@code dss.leaseMs}. Without
+ * peers the controller runs alone and always leads.
+ */
+public class ControllerGroup {
+  /** The replicated metadata, kept by the controller */
+  public interface StateMachine {
+    /**
+     * Apply one entry. Entries may be applied more than once around a snapshot, so applying must
+     * be idempotent.
+     */
+    void apply(String entry);
+
+    /** Forget all metadata before a snapshot is applied */
+    void reset();
+
+    /**
+     * @return entries that rebuild the current metadata from empty
+     */
+    List<String> snapshot();
+
+    /** Called once this controller takes over as leader */
+    void promoted();
+  }
+
+  private final int self;
+  private final List<Integer> peers;
+  private final int heartbeatMs;
+  private final long leaseMs;
+  private final int timeout;
+  private final TimerWheel timers;
+  private final StateMachine state;
+  private final BiConsumer<Socket, String> reply;
+  private final Map<Integer, Member> members;
+  private final ConcurrentHashMap<Long, PendingOperation> uncommitted;
+  private final long startedAt;
+  private final ScreenLogger log;
+  private ScheduledExecutorService ticker;
+
+  private volatile int leader;
+  // guarded by this; a follower's lastSeq is the last entry applied, the leader's the last sent
+  private long epoch;
+  private long lastSeq;
+  private long syncRequestedAt;
+  private boolean inSnapshot;
+
+  /**
+   * @param self - this controller's port
+   * @param peers - every controller's port in priority order, including this one
+   * @param heartbeatMs - heartbeat interval in milliseconds
+   * @param leaseMs - silence after which a controller is considered gone
+   * @param timeout - how long the leader waits for a majority before giving up on an entry
+   * @param timers - wheel driving replication timeouts
+   * @param state - replicated metadata
+   * @param reply - sends a message back over a connection another controller opened
+   */
+  public ControllerGroup(
+      int self,
+      List<Integer> peers,
+      int heartbeatMs,
+      long leaseMs,
+      int timeout,
+      TimerWheel timers,
+      StateMachine state,
+      BiConsumer<Socket, String> reply) {
+    this.self = self;
+    this.peers = peers.contains(self) ? peers : List.of(self);
+    this.heartbeatMs = heartbeatMs;
+    this.leaseMs = leaseMs;
+    this.timeout = timeout;
+    this.timers = timers;
+    this.state = state;
+    this.reply = reply;
+    this.members = new HashMap<>();
+    for (int port : this.peers) {
+      if (port != self) members.put(port, new Member(port));
+    }
+    this.uncommitted = new ConcurrentHashMap<>();
+    this.startedAt = System.currentTimeMillis();
+    this.log = new ScreenLogger("ControllerGroup");
+    // alone there is nobody to agree with
+    this.leader = members.isEmpty() ? self : -1;
+  }
+
+  /**
+   * @param self - this controller's port
+   * @param timeout - controller timeout in milliseconds
+   * @param timers - wheel driving replication timeouts
+   * @param state - replicated metadata
+   * @param reply - sends a message back over a connection another controller opened
+   * @return group configured from dss.peers, dss.heartbeatMs and dss.leaseMs
+   */
+  public static ControllerGroup fromSystemProperties(
+      int self,
+      int timeout,
+      TimerWheel timers,
+      StateMachine state,
+      BiConsumer<Socket, String> reply) {
+    List<Integer> peers = new ArrayList<>();
+    String configured = System.getProperty("dss.peers", "");
+    for (String port : configured.split(",")) {
+      if (!port.isBlank()) peers.add(Integer.parseInt(port.trim()));
+    }
+    int heartbeatMs = Integer.getInteger("dss.heartbeatMs", 200);
+    long leaseMs = Long.getLong("dss.leaseMs", 1000L);
+    return new ControllerGroup(self, peers, heartbeatMs, leaseMs, timeout, timers, state, reply);
+  }
+
+  /** Start heartbeating to the rest of the group */
+  public void start() {
+    if (members.isEmpty()) return;
+    log.info("Controller " + self + " joining group " + peers);
+    ticker =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "controller-group");
+              t.setDaemon(true);
+              return t;
+            });
+    ticker.scheduleWithFixedDelay(this::tick, 0, heartbeatMs, TimeUnit.MILLISECONDS);
+  }
+
+  public boolean isLeader() {
+    return leader == self;
+  }
+
+  /**
+   * @return port of the current leader, -1 while there is none
+   */
+  public int getLeader() {
+    return leader;
+  }
+
+  /**
+   * Replicate a metadata change nobody is waiting on, such as a repaired replica
+   *
+   * @param entry - metadata change
+   */
+  public void replicate(String entry) {
+    replicate(entry, () -> {}, () -> {});
+  }
+
+  /**
+   * Replicate a metadata change the leader has applied locally, then continue once a majority of
+   * the group holds it. If the majority does not answer within the timeout the change is not
+   * committed: the leader keeps it, but a failover may lose it, so it must not be confirmed to a
+   * client. Followers that missed it catch up through a snapshot while this leader lasts.
+   *
+   * @param entry - metadata change
+   * @param then - run once the change is committed
+   * @param failed - run instead if it is not committed within the timeout
+   */
+  public void replicate(String entry, Runnable then, Runnable failed) {
+    if (members.isEmpty()) {
+      then.run();
+      return;
+    }
+    synchronized (this) {
+      long seq = ++lastSeq;
+      PendingOperation op =
+          new PendingOperation(
+              peers.size() / 2,
+              () -> {
+                uncommitted.remove(seq);
+                then.run();
+              },
+              () -> {
+                uncommitted.remove(seq);
+                log.warn("Entry " + seq + " not acknowledged by a majority in time");
+                failed.run();
+              });
+      uncommitted.put(seq, op);
+      op.start(timers, timeout);
+      broadcast(Protocol.REPL_TOKEN + " " + epoch + " " + seq + " " + entry);
+    }
+  }
+
+  /**
+   * Handle a message from another controller on a connection it opened: PEER, HEARTBEAT, REPL,
+   * SNAPSHOT or SNAPSHOT_END
+   *
+   * @param line - message
+   * @param from - connection the message arrived on, replies go back over it
+   */
+  public void receive(String line, Socket from) {
+    String[] args = line.split(" ", 4);
+    switch (args[0]) {
+      case Protocol.PEER_TOKEN -> log.info("Controller " + args[1] + " connected");
+      case Protocol.HEARTBEAT_TOKEN -> heartbeat(line.split(" "), from);
+      case Protocol.REPL_TOKEN ->
+          append(Long.parseLong(args[1]), Long.parseLong(args[2]), args[3], from);
+      case Protocol.SNAPSHOT_TOKEN -> beginSnapshot(Long.parseLong(args[1]), args[2]);
+      case Protocol.SNAPSHOT_END_TOKEN -> endSnapshot(Long.parseLong(args[1]), args[2]);
+      default -> log.error("Invalid message from controller: " + line);
+    }
+  }
+
+  /** HEARTBEAT <port> <leading> <epoch> <seq> */
+  private synchronized void heartbeat(String[] args, Socket from) {
+    Member member = members.get(Integer.parseInt(args[1]));
+    if (member == null) {
+      log.error("Heartbeat from controller " + args[1] + " outside the group");
+      return;
+    }
+    member.lastHeard = System.currentTimeMillis();
+    member.leading = args[2].equals("1");
+    member.epoch = Long.parseLong(args[3]);
+    member.seq = Long.parseLong(args[4]);
+    if (member.leading && leader != member.port) elect();
+    if (leader == member.port && (member.epoch != epoch || member.seq > lastSeq)) {
+      requestSync(from);
+    }
+  }
+
+  /** REPL <epoch> <seq> <entry>, seq 0 for entries that are part of a snapshot */
+  private synchronized void append(long entryEpoch, long seq, String entry, Socket from) {
+    if (seq == 0) {
+      if (inSnapshot && entryEpoch == epoch) state.apply(entry);
+      return;
+    }
+    if (entryEpoch == epoch && seq <= lastSeq) return;
+    if (entryEpoch != epoch || seq != lastSeq + 1 || inSnapshot) {
+      requestSync(from);
+      return;
+    }
+    state.apply(entry);
+    lastSeq = seq;
+    reply.accept(from, Protocol.REPL_ACK_TOKEN + " " + entryEpoch + " " + seq);
+  }
+
+  /** SNAPSHOT <epoch> <seq>, the entries of the snapshot follow with seq 0 */
+  private synchronized void beginSnapshot(long snapshotEpoch, String seq) {
+    log.info("Receiving snapshot of epoch " + snapshotEpoch + " up to entry " + seq);
+    state.reset();
+    epoch = snapshotEpoch;
+    inSnapshot = true;
+  }
+
+  /** SNAPSHOT_END <epoch> <seq> */
+  private synchronized void endSnapshot(long snapshotEpoch, String seq) {
+    if (!inSnapshot || snapshotEpoch != epoch) return;
+    lastSeq = Long.parseLong(seq);
+    inSnapshot = false;
+    syncRequestedAt = 0;
+    log.info("In sync with the leader at entry " + lastSeq);
+  }
+
+  private void requestSync(Socket from) {
+    long now = System.currentTimeMillis();
+    // one request at a time, repeated only if the snapshot never arrives
+    if (now - syncRequestedAt < leaseMs) return;
+    syncRequestedAt = now;
+    reply.accept(from, Protocol.SYNC_TOKEN + " " + self);
+  }
+
+  /**
+   * Handle a message the other controller sent back on our connection to it: REPL_ACK or SYNC
+   *
+   * @param member - the other controller
+   * @param line - message
+   */
+  private void receiveReply(Member member, String line) {
+    String[] args = line.split(" ");
+    switch (args[0]) {
+      case Protocol.REPL_ACK_TOKEN -> {
+        PendingOperation op;
+        synchronized (this) {
+          if (Long.parseLong(args[1]) != epoch) return;
+          op = uncommitted.get(Long.parseLong(args[2]));
+        }
+        if (op != null) op.ack();
+      }
+      case Protocol.SYNC_TOKEN -> sendSnapshot(member);
+      default -> log.error("Invalid reply from controller " + member.port + ": " + line);
+    }
+  }
+
+  /**
+   * Send a follower the whole state. The snapshot is taken under the lock but written outside
+   * it; entries and heartbeats broadcast meanwhile are held back and sent after it, in order.
+   *
+   * @param member - follower that asked to sync
+   */
+  private void sendSnapshot(Member member) {
+    List<String> entries;
+    OutboundChannel channel;
+    long snapshotEpoch;
+    long seq;
+    synchronized (this) {
+      if (!isLeader() || member.channel == null || member.held != null) return;
+      entries = state.snapshot();
+      channel = member.channel;
+      snapshotEpoch = epoch;
+      seq = lastSeq;
+      member.held = new ArrayList<>();
+    }
+    log.info("Sending snapshot of " + entries.size() + " entries to controller " + member.port);
+    channel.send(Protocol.SNAPSHOT_TOKEN + " " + snapshotEpoch + " " + seq);
+    for (String entry : entries) {
+      channel.send(Protocol.REPL_TOKEN + " " + snapshotEpoch + " 0 " + entry);
+    }
+    channel.send(Protocol.SNAPSHOT_END_TOKEN + " " + snapshotEpoch + " " + seq);
+    while (true) {
+      List<String> held;
+      synchronized (this) {
+        // reconnected meanwhile, the new connection starts afresh
+        if (member.channel != channel) return;
+        held = member.held;
+        if (held.isEmpty()) {
+          member.held = null;
+          return;
+        }
+        member.held = new ArrayList<>();
+      }
+      held.forEach(channel::send);
+    }
+  }
+
+  private void tick() {
+    try {
+      for (Member member : members.values()) {
+        connect(member);
+      }
+      synchronized (this) {
+        elect();
+        broadcast(
+            Protocol.HEARTBEAT_TOKEN
+                + " "
+                + self
+                + " "
+                + (isLeader() ? 1 : 0)
+                + " "
+                + epoch
+                + " "
+                + lastSeq);
+      }
+    } catch (RuntimeException e) {
+      // an exception would cancel the schedule and silently stop the heartbeats
+      e.printStackTrace();
+    }
+  }
+
+  /** Decide who leads from the latest heartbeats, claiming or giving up the lease */
+  private synchronized void elect() {
+    long now = System.currentTimeMillis();
+    List<Member> live = new ArrayList<>();
+    for (Member member : members.values()) {
+      if (now - member.lastHeard < leaseMs) live.add(member);
+    }
+    boolean majority = live.size() + 1 > peers.size() / 2;
+
+    if (isLeader()) {
+      if (!majority) {
+        stepDown("lost sight of the majority of the group");
+        return;
+      }
+      for (Member member : live) {
+        if (member.leading && outranks(member)) {
+          stepDown("controller " + member.port + " leads epoch " + member.epoch);
+          return;
+        }
+      }
+      return;
+    }
+
+    Member current = null;
+    for (Member member : live) {
+      if (member.leading && (current == null || member.epoch > current.epoch)) current = member;
+    }
+    if (current != null) {
+      if (leader != current.port) {
+        log.info("Following controller " + current.port + " in epoch " + current.epoch);
+        leader = current.port;
+      }
+      return;
+    }
+    if (leader != -1) {
+      log.warn("Leader " + leader + " is gone");
+      leader = -1;
+    }
+    // a controller that just started waits a lease for an existing leader to show up
+    if (!majority || now - startedAt < leaseMs) return;
+    for (Member member : live) {
+      if (isAhead(member)) return;
+    }
+    claim();
+  }
+
+  /** Whether another controller's claim beats ours: newer epoch, or same epoch and priority */
+  private boolean outranks(Member member) {
+    if (member.epoch != epoch) return member.epoch > epoch;
+    return peers.indexOf(member.port) < peers.indexOf(self);
+  }
+
+  /** Whether another controller is better placed to lead: more metadata, then priority */
+  private boolean isAhead(Member member) {
+    if (member.epoch != epoch) return member.epoch > epoch;
+    if (member.seq != lastSeq) return member.seq > lastSeq;
+    return peers.indexOf(member.port) < peers.indexOf(self);
+  }
+
+  private void claim() {
+    long highest = epoch;
+    for (Member member : members.values()) {
+      highest = Math.max(highest, member.epoch);
+    }
+    epoch = highest + 1;
+    leader = self;
+    inSnapshot = false;
+    log.info("Controller " + self + " now leads epoch " + epoch);
+    state.promoted();
+  }
+
+  private void stepDown(String reason) {
+    log.warn("Giving up leadership: " + reason);
+    leader = -1;
+  }
+
+  private void broadcast(String line) {
+    for (Member member : members.values()) {
+      if (member.channel == null) continue;
+      if (member.held != null) {
+        member.held.add(line);
+      } else {
+        member.channel.send(line);
+      }
+    }
+  }
+
+  /** Open our connection to another controller if it is not up, and read its replies */
+  private void connect(Member member) {
+    if (member.socket != null && !member.socket.isClosed()) return;
+    try {
+      Socket socket = new Socket();
+      socket.connect(new InetSocketAddress(InetAddress.getLocalHost(), member.port), heartbeatMs);
+      socket.setTcpNoDelay(true);
+      OutboundChannel channel = new OutboundChannel(socket);
+      channel.send(Protocol.PEER_TOKEN + " " + self);
+      synchronized (this) {
+        member.socket = socket;
+        member.channel = channel;
+        member.held = null;
+      }
+      Thread reader =
+          new Thread(
+              () -> {
+                try {
+                  BufferedReader in =
+                      new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                  String line;
+                  while ((line = in.readLine()) != null) {
+                    receiveReply(member, line);
+                  }
+                } catch (IOException e) {
+                  log.warn("Connection to controller " + member.port + " lost");
+                } finally {
+                  disconnect(member, socket);
+                }
+              });
+      reader.setDaemon(true);
+      reader.start();
+    } catch (IOException e) {
+      // not up yet, retried on the next tick
+    }
+  }
+
+  private void disconnect(Member member, Socket socket) {
+    synchronized (this) {
+      if (member.socket == socket) {
+        member.socket = null;
+        member.channel = null;
+        member.held = null;
+      }
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** Another controller in the group, as last heard */
+  private static final class Member {
+    private final int port;
+    private Socket socket;
+    private OutboundChannel channel;
+    // messages for the member held back while a snapshot is written to it, null otherwise
+    private List<String> held;
+    private long lastHeard;
+    private boolean leading;
+    private long epoch;
+    private long seq;
+
+    private Member(int port) {
+      this.port = port;
+    }
+  }
+}
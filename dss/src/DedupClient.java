@@ -0,0 +1,93 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Client-side content-addressed STORE. Hashes the file first and offers the hash with
+ * STORE_HASHED; if the cluster already holds identical content the controller completes the
+ * store without any data being sent, otherwise the file is uploaded as usual.
+ */
+public class DedupClient {
+  private final int cport;
+  private final int timeout;
+  private final DstorePool pool;
+  private final ScreenLogger log = new ScreenLogger("DedupClient");
+
+  /**
+   * @param cport - controller port
+   * @param timeout - r/w timeout in milliseconds
+   * @param pool - data sessions to reuse
+   */
+  public DedupClient(int cport, int timeout, DstorePool pool) {
+    this.cport = cport;
+    this.timeout = timeout;
+    this.pool = pool;
+  }
+
+  /**
+   * Store a file, skipping the upload when its content is already stored
+   *
+   * @param file - local file
+   * @param fileName - name to store under
+   * @return true if the store was metadata-only
+   */
+  public boolean store(File file, String fileName) throws IOException {
+    String hash = sha256(file);
+    try (Socket controller = new Socket(InetAddress.getLocalHost(), cport)) {
+      controller.setSoTimeout(timeout * 2);
+      PrintWriter out = new PrintWriter(controller.getOutputStream(), true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+      out.println(
+          Protocol.STORE_HASHED_TOKEN + " " + fileName + " " + file.length() + " " + hash);
+      String[] reply = readReply(in);
+      if (reply[0].equals(Protocol.STORE_COMPLETE_TOKEN)) {
+        log.info(fileName + ": content already stored, no upload needed");
+        return true;
+      }
+      if (reply[0].equals(Protocol.LINK_FAILED_TOKEN)) {
+        log.warn(fileName + ": content could not be linked, uploading it");
+        out.println(Protocol.STORE_TOKEN + " " + fileName + " " + file.length());
+        reply = readReply(in);
+      }
+      if (!reply[0].equals(Protocol.STORE_TO_TOKEN)) {
+        throw new IOException("STORE_HASHED " + fileName + " failed: " + reply[0]);
+      }
+      for (int i = 1; i < reply.length; i++) {
+        try (DstorePool.Connection connection = pool.acquire(Integer.parseInt(reply[i]))) {
+          connection.store(fileName, file);
+        }
+      }
+      reply = readReply(in);
+      if (!reply[0].equals(Protocol.STORE_COMPLETE_TOKEN)) {
+        throw new IOException("STORE_HASHED " + fileName + " failed: " + reply[0]);
+      }
+      return false;
+    }
+  }
+
+  private static String[] readReply(BufferedReader in) throws IOException {
+    String line = in.readLine();
+    if (line == null) throw new EOFException("Controller closed the connection");
+    return line.split(" ");
+  }
+
+  private static String sha256(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    try (InputStream fIn = new FileInputStream(file)) {
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      while ((n = fIn.read(buffer)) != -1) {
+        digest.update(buffer, 0, n);
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+}
@@ -1,93 +1,219 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
 
 public class Dstore {
+  private static final int TRANSFER_CHUNK = 64 * 1024;
+  private static final int CONTROLLER_RETRY_MS = 500;
   private final int port;
   private final int timeout;
   private final String folder;
   private ServerSocket ss;
-  private Socket controller;
+  private final List<Integer> cports;
+  // every controller of the group we are joined to, acks go to all of them
+  private final List<Socket> controllers = new CopyOnWriteArrayList<>();
   private ScreenLogger log = new ScreenLogger("DStore");
+  private final OutboundChannel.Registry channels = new OutboundChannel.Registry();
+  // connection threads are reused instead of spawning one per client connection
+  private final ExecutorService clientPool = Executors.newCachedThreadPool();
+  private final AdmissionControl admission;
+  // report content hashes with STORE_ACK so the controller can deduplicate
+  private final boolean dedup = Boolean.getBoolean("dss.dedup");
+  // keep files deflated on disk, see CompressedFile
+  private final boolean compress = Boolean.getBoolean("dss.compress");
+  private final int compressLevel = Integer.getInteger("dss.compressLevel", Deflater.BEST_SPEED);
+  // below this the header and block prefix outweigh what deflate can save
+  private static final long COMPRESS_THRESHOLD = 1024;
+  // serve large files from shared memory mappings rather than read calls, see MappedFileCache
+  private final MappedFileCache mappedFiles =
+      Boolean.getBoolean("dss.mmap") ? MappedFileCache.fromSystemProperties() : null;
+  // below this setting up a mapping costs more than reading the file
+  private static final long MMAP_THRESHOLD = 1024 * 1024;
 
   public Dstore(int port, int cport, int timeout, String folder) {
     this.port = port;
     this.timeout = timeout;
     this.folder = folder;
+    this.cports = new ArrayList<>(List.of(cport));
+    for (String other : System.getProperty("dss.controllers", "").split(",")) {
+      if (!other.isBlank() && !cports.contains(Integer.parseInt(other.trim()))) {
+        cports.add(Integer.parseInt(other.trim()));
+      }
+    }
+    // tell the controller when we cross our limits so it places new files elsewhere
+    this.admission =
+        AdmissionControl.fromSystemProperties(
+            saturated ->
+                notifyControllers(
+                    (saturated ? Protocol.OVERLOADED_TOKEN : Protocol.AVAILABLE_TOKEN)
+                        + " "
+                        + port));
     try {
       this.ss = new ServerSocket(port);
-      InetAddress address = InetAddress.getLocalHost();
-      this.controller = new Socket(address, cport);
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Send a message to the controller or a client through its connection's outbound channel
+   *
+   * @param peer - controller or client socket
+   * @param message - message to send
+   */
+  private void send(Socket peer, String message) {
+    channels.send(peer, message);
+  }
+
+  /**
+   * Send a message to every controller we are joined to
+   *
+   * @param message - message to send
+   */
+  private void notifyControllers(String message) {
+    for (Socket controller : controllers) {
+      send(controller, message);
+    }
+  }
+
+  /**
+   * Stay joined to one controller: connect, JOIN, then serve its REMOVE and LINK commands. The
+   * connection is re-established whenever it drops, so a restarted controller or one taking over
+   * the group sees this dstore again.
+   *
+   * @param cport - controller port
+   */
+  private void followController(int cport) {
+    boolean reported = false;
+    while (true) {
+      try (Socket controller = new Socket(InetAddress.getLocalHost(), cport)) {
+        reported = false;
+        controllers.add(controller);
+        try {
+          send(controller, Protocol.JOIN_TOKEN + " " + port);
+          BufferedReader in =
+              new BufferedReader(new InputStreamReader(controller.getInputStream()));
+          String line;
+          while ((line = in.readLine()) != null) {
+            String[] args = line.split(" ");
+            switch (args[0]) {
+              case Protocol.REMOVE_TOKEN -> removeFile(args[1], controller);
+              case Protocol.LINK_TOKEN -> linkFile(args[1], args[2], controller);
+              // transfers can take long, the controller's other commands must not wait on them
+              case Protocol.REBALANCE_TOKEN -> clientPool.execute(() -> rebalance(args, controller));
+              case Protocol.DIGEST_TOKEN -> clientPool.execute(() -> digest(args, controller));
+              case Protocol.DIGEST_FILES_TOKEN ->
+                  clientPool.execute(() -> digestFiles(args, controller));
+              default -> {
+                log.error("Invalid command from controller");
+                log.error(line);
+              }
+            }
+          }
+          log.warn("Controller " + cport + " closed the connection");
+        } finally {
+          controllers.remove(controller);
+          channels.remove(controller);
+        }
+      } catch (IOException e) {
+        if (!reported) {
+          log.error("Controller " + cport + " unreachable: " + e.getMessage());
+          reported = true;
+        }
+      }
+      try {
+        Thread.sleep(CONTROLLER_RETRY_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
   public void start() {
     log.info("Starting DStore");
     try {
-      PrintWriter out = new PrintWriter(controller.getOutputStream(), true);
-      out.println(Protocol.JOIN_TOKEN + " " + port);
-      // Thread listening to controller
-      Thread c =
-          new Thread(
-              () -> {
-                try {
-                  BufferedReader in =
-                      new BufferedReader(new InputStreamReader(controller.getInputStream()));
-                  String line;
-                  while ((line = in.readLine()) != null) {
-                    String[] args = line.split(" ");
-                    switch (args[0]) {
-                      case Protocol.REMOVE_TOKEN -> removeFile(args[1], controller);
-                      default -> {
-                        log.error("Invalid command from controller");
-                        log.error(line);
-                      }
-                    }
-                  }
-                } catch (IOException e) {
-                  e.printStackTrace();
-                }
-              });
-      c.start();
+      // Threads listening to the controllers
+      for (int cport : cports) {
+        new Thread(() -> followController(cport)).start();
+      }
 
       // Listen for clients
       while (true) {
         Socket client = ss.accept();
-        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-
-        Thread t =
-            new Thread(
-                () -> {
-                  String line;
-                  try {
-                    while ((line = in.readLine()) != null) {
-                      String[] args = line.split(" ");
-                      switch (args[0]) {
-                        case Protocol.STORE_TOKEN -> storeFile(args[1], args[2], client);
-                        case Protocol.LOAD_DATA_TOKEN -> loadFile(args[1], client);
-                        default -> {
-                          log.error("Invalid command from client");
-                          log.error(line);
-                        }
-                      }
-                    }
-                  } catch (SocketTimeoutException e) {
-                    log.error("Client r/w timed out on port: " + client.getPort());
-                  } catch (SocketException e) {
-                    if (e.getMessage().equals("Socket closed")) {
-                      log.info("Client disconnected");
-                    } else {
-                      e.printStackTrace();
-                    }
-                  } catch (IOException e) {
-                    e.printStackTrace();
-                  }
-                });
-        t.start();
+        // replies are already coalesced by the outbound channel
+        client.setTcpNoDelay(true);
+        clientPool.execute(() -> serveClient(client));
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Serve one client connection until it closes. A connection that opens with DATA_SESSION stays
+   * up across any number of STORE and LOAD_DATA requests, which may be pipelined. A session opened
+   * with DATA_SESSION DEFLATE is sent compressed files as stored, for the client to inflate.
+   *
+   * @param client - client socket
+   */
+  private void serveClient(Socket client) {
+    boolean session = false;
+    boolean deflate = false;
+    try {
+      // one buffered stream for both command lines and file data, so read-ahead is never lost
+      InputStream in = new BufferedInputStream(client.getInputStream());
+      String line;
+      while ((line = LineReader.readLine(in)) != null) {
+        String[] args = line.split(" ");
+        switch (args[0]) {
+          case Protocol.DATA_SESSION_TOKEN -> {
+            session = true;
+            deflate = args.length > 1 && args[1].equals(Protocol.DEFLATE_TOKEN);
+            send(client, Protocol.ACK_TOKEN);
+          }
+          case Protocol.STORE_TOKEN -> storeFile(args[1], args[2], client, in, false);
+          case Protocol.REBALANCE_STORE_TOKEN -> storeFile(args[1], args[2], client, in, true);
+          case Protocol.STORE_BATCH_TOKEN -> storeBatch(Integer.parseInt(args[1]), client, in);
+          case Protocol.LOAD_DATA_TOKEN -> loadFile(args[1], client, session, deflate);
+          case Protocol.LOAD_RANGE_TOKEN ->
+              loadRange(args[1], Long.parseLong(args[2]), Long.parseLong(args[3]), client, session);
+          default -> {
+            log.error("Invalid command from client");
+            log.error(line);
+          }
+        }
+        if (session) {
+          // idle between requests is fine, the timeout only covers a transfer in progress
+          client.setSoTimeout(0);
+        }
+      }
+    } catch (SocketTimeoutException e) {
+      log.error("Client r/w timed out on port: " + client.getPort());
+    } catch (SocketException e) {
+      if (e.getMessage().equals("Socket closed")) {
+        log.info("Client disconnected");
+      } else {
+        e.printStackTrace();
       }
     } catch (IOException e) {
       e.printStackTrace();
+    } finally {
+      channels.remove(client);
     }
   }
 
@@ -96,71 +222,441 @@ public class Dstore {
     File file = new File(folder + "/" + fileName);
     if (!file.exists()) {
       log.error("File does not exist");
-      try {
-        PrintWriter out = new PrintWriter(controller.getOutputStream(), true);
-        out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
       return;
     }
+    if (mappedFiles != null) mappedFiles.forget(file);
     if (file.delete()) {
       log.info(fileName + " deleted.");
-      try {
-        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-        out.println(Protocol.REMOVE_ACK_TOKEN + " " + fileName);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      send(client, Protocol.REMOVE_ACK_TOKEN + " " + fileName);
     } else {
       log.error(fileName + "delete failed.");
     }
   }
 
-  private void loadFile(String fileName, Socket client) {
+  /**
+   * Store a file whose content this dstore already holds, LINK <existing> <filename>, by hard
+   * linking it. Acked with STORE_ACK like a normal store, without any data transfer.
+   *
+   * @param existing - stored file with the same content
+   * @param fileName - new file name
+   * @param controller - controller asking for the link
+   */
+  private void linkFile(String existing, String fileName, Socket controller) {
+    log.info("Link request received for " + fileName + " -> " + existing);
+    Path source = Paths.get(folder, existing);
+    Path target = Paths.get(folder, fileName);
+    try {
+      Files.deleteIfExists(target);
+      Files.createLink(target, source);
+    } catch (IOException e) {
+      log.error(fileName + ": link to " + existing + " failed: " + e.getMessage());
+      send(controller, Protocol.LINK_FAILED_TOKEN + " " + fileName);
+      return;
+    }
+    send(controller, Protocol.STORE_ACK_TOKEN + " " + fileName);
+    log.info(fileName + ": linked. Notify controller");
+  }
+
+  private void loadFile(String fileName, Socket client, boolean session, boolean deflate) {
     log.info("Load request received for " + fileName);
     try {
       client.setSoTimeout(timeout);
       File file = new File(folder + "/" + fileName);
       if (!file.exists()) {
         log.warn(fileName + ": file not found");
+        if (session) {
+          send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
+        } else {
+          client.close();
+        }
+        return;
+      }
+      long original = CompressedFile.originalSize(file);
+      long size = original < 0 ? file.length() : original;
+      // a compressed file goes out as stored when the client can inflate it itself
+      boolean asStored = original >= 0 && deflate;
+      long length = asStored ? file.length() - CompressedFile.HEADER_LENGTH : size;
+      // only one chunk is ever held in memory
+      long buffered = Math.min(length, TRANSFER_CHUNK);
+      if (!admission.admit(buffered, timeout)) {
+        log.warn(fileName + ": load rejected, dstore over its transfer limits");
         client.close();
         return;
       }
-      byte[] buffer = new byte[(int) file.length()];
-      FileInputStream fIn = new FileInputStream(file);
-      fIn.read(buffer);
-      fIn.close();
-      client.getOutputStream().write(buffer);
-      log.info(fileName + ": sent to client");
+      try (InputStream fIn =
+          asStored ? openRaw(file, CompressedFile.HEADER_LENGTH) : openContent(file, original, 0)) {
+        if (session) {
+          send(
+              client,
+              asStored
+                  ? Protocol.DATA_TOKEN + " " + length + " " + Protocol.DEFLATE_TOKEN + " " + size
+                  : Protocol.DATA_TOKEN + " " + size);
+        }
+        OutboundChannel out = channels.get(client);
+        byte[] buffer = new byte[(int) Math.max(buffered, 1)];
+        long remaining = length;
+        while (remaining > 0) {
+          int n = fIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (n < 0) throw new EOFException(fileName + ": truncated while loading");
+          admission.throttle(AdmissionControl.TrafficClass.CLIENT, n);
+          out.sendBytes(buffer, 0, n);
+          remaining -= n;
+        }
+        log.info(fileName + ": sent to client");
+      } finally {
+        admission.release(buffered);
+      }
     } catch (SocketTimeoutException e) {
         log.error("Client r/w timed out during load operation");
     } catch (IOException e) {
       e.printStackTrace();
+    } catch (InterruptedException e) {
+      log.error(fileName + ": load interrupted");
     }
   }
 
-  private void storeFile(String fileName, String fileSize, Socket client) {
-    log.info("Store request received for " + fileName);
+  /**
+   * Serve part of a file, LOAD_RANGE <filename> <offset> <length>, for clients fetching one file
+   * from several dstores in parallel. The range is clamped to the end of the file.
+   */
+  private void loadRange(
+      String fileName, long offset, long length, Socket client, boolean session) {
+    log.debug("Range request received for " + fileName + " [" + offset + ", +" + length + ")");
     try {
-      PrintWriter out = new PrintWriter(client.getOutputStream(), true);
-      out.println(Protocol.ACK_TOKEN);
-      log.info("Ready for file " + fileName);
-      byte[] buffer = client.getInputStream().readNBytes(Integer.parseInt(fileSize));
       client.setSoTimeout(timeout);
-      log.debug(buffer.length + " bytes received");
-      File outFile = new File(folder + "/" + fileName);
-      FileOutputStream fOut = new FileOutputStream(outFile);
-      fOut.write(buffer);
+      File file = new File(folder + "/" + fileName);
+      if (!file.exists()) {
+        log.warn(fileName + ": file not found");
+        if (session) {
+          send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
+        } else {
+          client.close();
+        }
+        return;
+      }
+      long original = CompressedFile.originalSize(file);
+      long fileSize = original < 0 ? file.length() : original;
+      long size = Math.max(0, Math.min(length, fileSize - offset));
+      if (!admission.admit(Math.min(size, TRANSFER_CHUNK), timeout)) {
+        log.warn(fileName + ": range load rejected, dstore over its transfer limits");
+        client.close();
+        return;
+      }
+      try (InputStream fIn = openContent(file, original, Math.min(offset, fileSize))) {
+        if (session) {
+          send(client, Protocol.DATA_TOKEN + " " + size);
+        }
+        OutboundChannel out = channels.get(client);
+        byte[] buffer = new byte[(int) Math.min(size, TRANSFER_CHUNK)];
+        long remaining = size;
+        while (remaining > 0) {
+          int n = fIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (n < 0) throw new EOFException(fileName + ": truncated while serving range");
+          admission.throttle(AdmissionControl.TrafficClass.CLIENT, n);
+          out.sendBytes(buffer, 0, n);
+          remaining -= n;
+        }
+      } finally {
+        admission.release(Math.min(size, TRANSFER_CHUNK));
+      }
+    } catch (SocketTimeoutException e) {
+      log.error("Client r/w timed out during range load");
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      log.error(fileName + ": range load interrupted");
+    }
+  }
+
+  /**
+   * Open a stored file for reading its original content
+   *
+   * @param file - stored file
+   * @param original - original size if the file is compressed, -1 if plain
+   * @param offset - first byte to read
+   */
+  private InputStream openContent(File file, long original, long offset) throws IOException {
+    return original < 0 ? openRaw(file, offset) : CompressedFile.open(file, offset);
+  }
+
+  /**
+   * Open a stored file for reading its bytes as they are on disk
+   *
+   * @param file - stored file
+   * @param offset - first byte to read
+   */
+  private InputStream openRaw(File file, long offset) throws IOException {
+    if (mappedFiles != null && file.length() >= MMAP_THRESHOLD) {
+      return mappedFiles.open(file, offset);
+    }
+    FileInputStream fIn = new FileInputStream(file);
+    fIn.getChannel().position(offset);
+    return fIn;
+  }
+
+  private OutputStream createStored(File file, long size) throws IOException {
+    // never write through an existing name, it may be a hard link shared with other files
+    if (mappedFiles != null) mappedFiles.forget(file);
+    Files.deleteIfExists(file.toPath());
+    FileOutputStream fOut = new FileOutputStream(file);
+    if (!compress || size < COMPRESS_THRESHOLD || !CompressedFile.mark(file, size)) return fOut;
+    try {
+      return new CompressedFile.Writer(fOut, size, compressLevel);
+    } catch (IOException e) {
       fOut.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Receive a file, STORE <filename> <size> from a client or REBALANCE_STORE <filename> <size>
+   * from another dstore. Only client stores are acked to the controllers; a rebalance is reported
+   * by the sending dstore once all its transfers are done.
+   */
+  private void storeFile(
+      String fileName, String fileSize, Socket client, InputStream in, boolean rebalance) {
+    log.info((rebalance ? "Rebalance store" : "Store") + " request received for " + fileName);
+    AdmissionControl.TrafficClass traffic =
+        rebalance ? AdmissionControl.TrafficClass.BACKGROUND : AdmissionControl.TrafficClass.CLIENT;
+    long size = Long.parseLong(fileSize);
+    // streamed to disk, only one chunk is ever held in memory
+    long buffered = Math.min(size, TRANSFER_CHUNK);
+    File outFile = new File(folder + "/" + fileName);
+    try {
+      if (!admission.admit(buffered, timeout)) {
+        log.warn(fileName + ": store rejected, dstore over its transfer limits");
+        client.close();
+        return;
+      }
+      MessageDigest digest = dedup ? newDigest() : null;
+      try (OutputStream fOut = createStored(outFile, size)) {
+        send(client, Protocol.ACK_TOKEN);
+        log.info("Ready for file " + fileName);
+        client.setSoTimeout(timeout);
+        byte[] buffer = new byte[(int) Math.max(buffered, 1)];
+        long received = 0;
+        while (received < size) {
+          int n = in.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+          if (n < 0) throw new EOFException(fileName + ": client closed mid transfer");
+          admission.throttle(traffic, n);
+          fOut.write(buffer, 0, n);
+          if (digest != null) digest.update(buffer, 0, n);
+          received += n;
+        }
+        log.debug(received + " bytes received");
+      } catch (IOException | InterruptedException e) {
+        // never leave a truncated file behind to be served later
+        outFile.delete();
+        throw e;
+      } finally {
+        admission.release(buffered);
+      }
 
-      PrintWriter outS = new PrintWriter(controller.getOutputStream(), true);
-      outS.println(Protocol.STORE_ACK_TOKEN + " " + fileName);
+      if (rebalance) {
+        log.info(fileName + ": received from another dstore");
+        return;
+      }
+      String ack = Protocol.STORE_ACK_TOKEN + " " + fileName;
+      if (digest != null) ack += " " + HexFormat.of().formatHex(digest.digest());
+      notifyControllers(ack);
       log.info(fileName + ": stored. Notify controller");
     } catch (SocketTimeoutException e) {
       log.error("Client r/w timed out during store operation");
     } catch (IOException e) {
       e.printStackTrace();
+    } catch (InterruptedException e) {
+      log.error(fileName + ": store interrupted");
+    }
+  }
+
+  /**
+   * Receive tiny files the controller held inline, STORE_BATCH <n> then for each file a
+   * <filename> <size> line followed by its bytes. Replies one ACK once all are on disk; the
+   * controller tracks the batch itself, so no STORE_ACK is sent. On failure the connection is
+   * closed and the controller sends the batch again.
+   *
+   * @param count - number of files
+   * @param client - controller's data session
+   * @param in - buffered client stream
+   */
+  private void storeBatch(int count, Socket client, InputStream in) throws IOException {
+    log.info("Store batch of " + count + " files received");
+    client.setSoTimeout(timeout);
+    try {
+      for (int i = 0; i < count; i++) {
+        String line = LineReader.readLine(in);
+        if (line == null) throw new EOFException("controller closed mid batch");
+        String[] header = line.split(" ");
+        File outFile = new File(folder + "/" + header[0]);
+        byte[] data = in.readNBytes(Integer.parseInt(header[1]));
+        if (data.length < Integer.parseInt(header[1])) {
+          throw new EOFException(header[0] + ": controller closed mid batch");
+        }
+        admission.throttle(AdmissionControl.TrafficClass.BACKGROUND, data.length);
+        try (OutputStream fOut = createStored(outFile, data.length)) {
+          fOut.write(data);
+        } catch (IOException e) {
+          outFile.delete();
+          throw e;
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      log.error("Store batch failed: " + e.getMessage());
+      client.close();
+      return;
+    }
+    send(client, Protocol.ACK_TOKEN);
+    log.info(count + " batched files stored");
+  }
+
+  /**
+   * Handle REBALANCE <n> (<filename> <m> <port> ...)*n <k> <filename>*k from the controller:
+   * send each listed file to its dstores, then remove the listed files. Replies
+   * REBALANCE_COMPLETE only if every transfer succeeded, otherwise the controller's timeout
+   * retries it.
+   *
+   * @param args - REBALANCE message
+   * @param controller - controller asking for the rebalance
+   */
+  private void rebalance(String[] args, Socket controller) {
+    boolean complete = true;
+    int i = 1;
+    int sends = Integer.parseInt(args[i++]);
+    for (int f = 0; f < sends; f++) {
+      String fileName = args[i++];
+      int targets = Integer.parseInt(args[i++]);
+      for (int t = 0; t < targets; t++) {
+        int target = Integer.parseInt(args[i++]);
+        try {
+          sendFile(fileName, target);
+        } catch (IOException e) {
+          log.error(fileName + ": rebalance to dstore " + target + " failed: " + e.getMessage());
+          complete = false;
+        } catch (InterruptedException e) {
+          log.error(fileName + ": rebalance interrupted");
+          return;
+        }
+      }
+    }
+    int removes = Integer.parseInt(args[i++]);
+    for (int f = 0; f < removes; f++) {
+      String fileName = args[i++];
+      File file = new File(folder + "/" + fileName);
+      if (mappedFiles != null) mappedFiles.forget(file);
+      if (file.exists() && !file.delete()) {
+        log.error(fileName + ": rebalance delete failed");
+        complete = false;
+      }
+    }
+    if (complete) send(controller, Protocol.REBALANCE_COMPLETE_TOKEN);
+  }
+
+  /**
+   * Copy a stored file to another dstore with REBALANCE_STORE, at background priority
+   *
+   * @param fileName - file to send
+   * @param target - dstore port
+   */
+  private void sendFile(String fileName, int target) throws IOException, InterruptedException {
+    File file = new File(folder + "/" + fileName);
+    long original = CompressedFile.originalSize(file);
+    long size = original < 0 ? file.length() : original;
+    long buffered = Math.min(size, TRANSFER_CHUNK);
+    if (!admission.admit(buffered, timeout)) {
+      throw new IOException("dstore over its transfer limits");
+    }
+    try (Socket peer = new Socket(InetAddress.getLocalHost(), target);
+        InputStream fIn = openContent(file, original, 0)) {
+      peer.setSoTimeout(timeout);
+      peer.setTcpNoDelay(true);
+      OutputStream out = new BufferedOutputStream(peer.getOutputStream());
+      InputStream in = new BufferedInputStream(peer.getInputStream());
+      out.write((Protocol.REBALANCE_STORE_TOKEN + " " + fileName + " " + size + "\n").getBytes());
+      out.flush();
+      String reply = LineReader.readLine(in);
+      if (!Protocol.ACK_TOKEN.equals(reply)) {
+        throw new IOException("expected " + Protocol.ACK_TOKEN + ", got " + reply);
+      }
+      byte[] buffer = new byte[(int) Math.max(buffered, 1)];
+      long remaining = size;
+      while (remaining > 0) {
+        int n = fIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (n < 0) throw new EOFException(fileName + ": truncated while rebalancing");
+        admission.throttle(AdmissionControl.TrafficClass.BACKGROUND, n);
+        out.write(buffer, 0, n);
+        remaining -= n;
+      }
+      out.flush();
+      log.info(fileName + ": sent to dstore " + target);
+    } finally {
+      admission.release(buffered);
+    }
+  }
+
+  /**
+   * @return every file in the folder with its original size
+   */
+  private Map<String, Long> inventory() throws IOException {
+    File[] listing = new File(folder).listFiles(File::isFile);
+    if (listing == null) throw new IOException("cannot list " + folder);
+    Map<String, Long> files = new HashMap<>();
+    for (File file : listing) {
+      long original = CompressedFile.originalSize(file);
+      files.put(file.getName(), original < 0 ? file.length() : original);
+    }
+    return files;
+  }
+
+  /**
+   * Handle DIGEST <buckets> from the controller's anti-entropy round: reply DIGEST with the
+   * digest of each bucket of the files held here, see StoreDigest
+   *
+   * @param args - DIGEST message
+   * @param controller - controller asking
+   */
+  private void digest(String[] args, Socket controller) {
+    try {
+      int buckets = Integer.parseInt(args[1]);
+      long[] digest = StoreDigest.digest(inventory(), buckets);
+      send(controller, Protocol.DIGEST_TOKEN + " " + StoreDigest.encode(digest));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Handle DIGEST_FILES <buckets> <bucket> ... for the buckets that differ from the controller's
+   * index: reply DIGEST_FILES <filename> <size> ... with the files held here in those buckets
+   *
+   * @param args - DIGEST_FILES message
+   * @param controller - controller asking
+   */
+  private void digestFiles(String[] args, Socket controller) {
+    try {
+      int buckets = Integer.parseInt(args[1]);
+      Set<Integer> listed = new HashSet<>();
+      for (int i = 2; i < args.length; i++) {
+        listed.add(Integer.parseInt(args[i]));
+      }
+      StringBuilder reply = new StringBuilder(Protocol.DIGEST_FILES_TOKEN);
+      for (Map.Entry<String, Long> file : inventory().entrySet()) {
+        if (listed.contains(StoreDigest.bucketOf(file.getKey(), buckets))) {
+          reply.append(" ").append(file.getKey()).append(" ").append(file.getValue());
+        }
+      }
+      send(controller, reply.toString());
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every JRE ships SHA-256
+      throw new IllegalStateException(e);
     }
   }
 
@@ -0,0 +1,331 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side pool of long-lived data sessions to dstores, bounded per dstore. A connection is
+ * borrowed with {@link #acquire(int)} and handed back by closing it, so many small STORE and
+ * LOAD_DATA transfers reuse the same TCP connection. Sessions accept files the dstore keeps
+ * compressed as they are stored and inflate them here, saving bandwidth and the dstore's CPU.
+ *
+ * <pre>
+ *   try (DstorePool.Connection c = pool.acquire(port)) {
+ *     byte[] data = c.load("a.txt");
+ *   }
+ * </pre>
+ */
+public class DstorePool implements Closeable {
+  private final int maxPerDstore;
+  private final int timeout;
+  private final ConcurrentHashMap<Integer, PerDstore> pools;
+  private final ScreenLogger log = new ScreenLogger("DstorePool");
+
+  /**
+   * @param maxPerDstore - max open connections to any one dstore
+   * @param timeout - r/w and acquire timeout in milliseconds
+   */
+  public DstorePool(int maxPerDstore, int timeout) {
+    this.maxPerDstore = maxPerDstore;
+    this.timeout = timeout;
+    this.pools = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Borrow a session to a dstore, reusing an idle one when available
+   *
+   * @param port - dstore port
+   * @return open session, return it by closing
+   * @throws PoolExhaustedException if every session to the dstore stayed busy for the timeout
+   */
+  public Connection acquire(int port) throws IOException {
+    PerDstore pool = pools.computeIfAbsent(port, p -> new PerDstore(p));
+    try {
+      if (!pool.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        throw new PoolExhaustedException("No free connection to dstore " + port);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for dstore " + port);
+    }
+    Connection connection;
+    synchronized (pool.idle) {
+      connection = pool.idle.pollFirst();
+    }
+    if (connection != null) {
+      connection.closed = false;
+      return connection;
+    }
+    try {
+      return new Connection(pool);
+    } catch (IOException e) {
+      pool.permits.release();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    for (PerDstore pool : pools.values()) {
+      synchronized (pool.idle) {
+        for (Connection connection : pool.idle) {
+          connection.disconnect();
+        }
+        pool.idle.clear();
+      }
+    }
+  }
+
+  /** No session to a dstore came free in time. The dstore itself may be fine, try again later. */
+  public static final class PoolExhaustedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private PoolExhaustedException(String message) {
+      super(message);
+    }
+  }
+
+  /** Stops a decoder from reading past the end of one reply into the next */
+  private static final class BoundedInput extends FilterInputStream {
+    private long remaining;
+
+    private BoundedInput(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining == 0) return -1;
+      int b = in.read();
+      if (b >= 0) remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) return -1;
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) remaining -= n;
+      return n;
+    }
+  }
+
+  private final class PerDstore {
+    private final int port;
+    private final Semaphore permits;
+    private final ArrayDeque<Connection> idle;
+
+    private PerDstore(int port) {
+      this.port = port;
+      this.permits = new Semaphore(maxPerDstore);
+      this.idle = new ArrayDeque<>();
+    }
+  }
+
+  /** One data session. Closing it returns it to the pool unless a transfer failed part way. */
+  public final class Connection implements Closeable {
+    private final PerDstore pool;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private boolean broken;
+    // set once the borrower has handed it back, so a second close is a no-op
+    private boolean closed;
+
+    private Connection(PerDstore pool) throws IOException {
+      this.pool = pool;
+      this.socket = new Socket(InetAddress.getLocalHost(), pool.port);
+      this.socket.setSoTimeout(timeout);
+      // requests are small and latency bound, never wait on Nagle
+      this.socket.setTcpNoDelay(true);
+      this.in = new BufferedInputStream(socket.getInputStream());
+      this.out = new BufferedOutputStream(socket.getOutputStream());
+      writeLine(Protocol.DATA_SESSION_TOKEN + " " + Protocol.DEFLATE_TOKEN);
+      expect(Protocol.ACK_TOKEN);
+    }
+
+    public int getPort() {
+      return pool.port;
+    }
+
+    /**
+     * Fetch a whole file
+     *
+     * @param fileName - file to load
+     * @return file content
+     * @throws FileNotFoundException if the dstore does not hold the file
+     */
+    public byte[] load(String fileName) throws IOException {
+      try {
+        writeLine(Protocol.LOAD_DATA_TOKEN + " " + fileName);
+        String[] header = readDataHeader(fileName);
+        long size = Long.parseLong(header[1]);
+        if (header.length > 3 && header[2].equals(Protocol.DEFLATE_TOKEN)) {
+          byte[] data = new byte[Integer.parseInt(header[3])];
+          BoundedInput blocks = new BoundedInput(in, size);
+          CompressedFile.decode(blocks, data);
+          if (blocks.remaining != 0) throw new IOException(fileName + ": trailing compressed data");
+          return data;
+        }
+        byte[] data = in.readNBytes((int) size);
+        if (data.length != size) throw new EOFException("Dstore closed mid transfer");
+        return data;
+      } catch (FileNotFoundException e) {
+        throw e;
+      } catch (IOException e) {
+        broken = true;
+        throw e;
+      }
+    }
+
+    /**
+     * Fetch part of a file and write it straight into a channel at the matching position
+     *
+     * @param fileName - file to load
+     * @param offset - first byte of the range
+     * @param length - number of bytes
+     * @param target - preallocated destination
+     * @return bytes written
+     * @throws FileNotFoundException if the dstore does not hold the file
+     */
+    public long loadRange(String fileName, long offset, long length, FileChannel target)
+        throws IOException {
+      return loadRange(fileName, offset, length, target, offset);
+    }
+
+    /**
+     * Fetch part of a file and write it into a channel at the given position
+     *
+     * @param fileName - file to load
+     * @param offset - first byte of the range
+     * @param length - number of bytes
+     * @param target - destination
+     * @param position - where in the destination the range starts
+     * @return bytes written
+     * @throws FileNotFoundException if the dstore does not hold the file
+     */
+    public long loadRange(
+        String fileName, long offset, long length, FileChannel target, long position)
+        throws IOException {
+      try {
+        writeLine(Protocol.LOAD_RANGE_TOKEN + " " + fileName + " " + offset + " " + length);
+        long size = Long.parseLong(readDataHeader(fileName)[1]);
+        byte[] buffer = new byte[(int) Math.min(Math.max(size, 1), 64 * 1024)];
+        long written = 0;
+        while (written < size) {
+          int n = in.read(buffer, 0, (int) Math.min(buffer.length, size - written));
+          if (n < 0) throw new EOFException("Dstore closed mid transfer");
+          ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+          while (chunk.hasRemaining()) {
+            target.write(chunk, position + written + chunk.position());
+          }
+          written += n;
+        }
+        return written;
+      } catch (FileNotFoundException e) {
+        throw e;
+      } catch (IOException e) {
+        broken = true;
+        throw e;
+      }
+    }
+
+    /**
+     * Upload a file, streaming it from disk
+     *
+     * @param fileName - name to store under
+     * @param file - local file
+     */
+    public void store(String fileName, File file) throws IOException {
+      store(fileName, file, 0, file.length());
+    }
+
+    /**
+     * Upload a region of a local file as its own object, streaming it from disk
+     *
+     * @param fileName - name to store under
+     * @param file - local file
+     * @param offset - first byte of the region
+     * @param length - number of bytes
+     */
+    public void store(String fileName, File file, long offset, long length) throws IOException {
+      try {
+        writeLine(Protocol.STORE_TOKEN + " " + fileName + " " + length);
+        expect(Protocol.ACK_TOKEN);
+        try (RandomAccessFile fIn = new RandomAccessFile(file, "r")) {
+          fIn.seek(offset);
+          byte[] buffer = new byte[(int) Math.min(Math.max(length, 1), 64 * 1024)];
+          long sent = 0;
+          while (sent < length) {
+            int n = fIn.read(buffer, 0, (int) Math.min(buffer.length, length - sent));
+            if (n < 0) throw new EOFException(file + " shorter than expected");
+            out.write(buffer, 0, n);
+            sent += n;
+          }
+        }
+        out.flush();
+      } catch (IOException e) {
+        broken = true;
+        throw e;
+      }
+    }
+
+    /** Return the session to the pool, or drop it if it is no longer usable */
+    @Override
+    public void close() {
+      synchronized (this) {
+        if (closed) return;
+        closed = true;
+      }
+      if (broken || socket.isClosed()) {
+        disconnect();
+      } else {
+        synchronized (pool.idle) {
+          pool.idle.addFirst(this);
+        }
+      }
+      pool.permits.release();
+    }
+
+    private String[] readDataHeader(String fileName) throws IOException {
+      String line = LineReader.readLine(in);
+      if (line == null) throw new EOFException("Dstore " + pool.port + " closed the session");
+      String[] args = line.split(" ");
+      if (args[0].equals(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN)) {
+        throw new FileNotFoundException(fileName + " not on dstore " + pool.port);
+      }
+      if (!args[0].equals(Protocol.DATA_TOKEN)) {
+        throw new IOException("Unexpected reply from dstore " + pool.port + ": " + line);
+      }
+      return args;
+    }
+
+    private void writeLine(String line) throws IOException {
+      out.write(line.getBytes(StandardCharsets.UTF_8));
+      out.write('\n');
+      out.flush();
+    }
+
+    private void expect(String token) throws IOException {
+      String line = LineReader.readLine(in);
+      if (!token.equals(line)) {
+        throw new IOException("Expected " + token + " from dstore " + pool.port + ", got " + line);
+      }
+    }
+
+    private void disconnect() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        log.warn("Closing connection to dstore " + pool.port + " failed: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,229 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Loopback failover check for a controller group. Starts three controllers sharing dss.peers and
+ * three dstores following all of them, each in its own JVM on this host, then:
+ *
+ * <ol>
+ *   <li>stores a file through the leader and checks every controller lists it
+ *   <li>kills the leader and times how long until another controller completes a STORE
+ *   <li>checks the first file is still loadable and removable through the new leader
+ *   <li>restarts the old leader and checks it catches up from a snapshot and answers NOT_LEADER
+ * </ol>
+ *
+ * <p>Child output goes to one log per process in the work directory. Exits 0 if every check
+ * passed.
+ *
+ * <p>Usage: java FailoverCheck [basePort, default 12345] [timeout ms, default 1000] [work dir]
+ */
+public class FailoverCheck {
+  private static final int REPLICATION = 2;
+  private static final long FAILOVER_LIMIT_MS = 10_000;
+
+  private final int[] controllers;
+  private final int[] dstores;
+  private final int timeout;
+  private final File dir;
+  private final Map<String, Process> processes = new LinkedHashMap<>();
+  private int failures;
+
+  private FailoverCheck(int basePort, int timeout, File dir) {
+    this.controllers = new int[] {basePort, basePort + 10, basePort + 20};
+    this.dstores = new int[] {basePort + 1, basePort + 2, basePort + 3};
+    this.timeout = timeout;
+    this.dir = dir;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int basePort = args.length > 0 ? Integer.parseInt(args[0]) : 12345;
+    int timeout = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    File dir = args.length > 2 ? new File(args[2]) : Files.createTempDirectory("failover").toFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+    FailoverCheck check = new FailoverCheck(basePort, timeout, dir);
+    try {
+      check.run();
+    } finally {
+      check.stopAll();
+    }
+    if (check.failures > 0) {
+      ScreenLogger.justError(check.failures + " checks failed, logs in " + dir);
+      System.exit(1);
+    }
+    ScreenLogger.justInfo("All checks passed, logs in " + dir);
+  }
+
+  private void run() throws Exception {
+    for (int port : controllers) {
+      start("controller-" + port, "Controller", port, REPLICATION, timeout, 100000);
+    }
+    Thread.sleep(500);
+    for (int port : dstores) {
+      start("dstore-" + port, "Dstore", port, controllers[0], timeout, "dstore-" + port);
+    }
+
+    int leader = awaitLeader(-1);
+    ScreenLogger.justInfo("Controller " + leader + " leads");
+    byte[] first = "hello from before the failover".repeat(20).getBytes(StandardCharsets.UTF_8);
+    check(
+        "STORE a.txt through the leader",
+        Protocol.STORE_COMPLETE_TOKEN.equals(store(leader, "a.txt", first)));
+    Thread.sleep(200);
+    for (int port : controllers) {
+      check("controller " + port + " lists a.txt", request(port, "LIST").contains("a.txt"));
+    }
+
+    processes.remove("controller-" + leader).destroyForcibly().waitFor();
+    long killed = System.currentTimeMillis();
+    ScreenLogger.justWarn("Killed leader " + leader);
+    int successor = awaitLeader(leader);
+    byte[] second = "written after the failover".repeat(20).getBytes(StandardCharsets.UTF_8);
+    String stored = null;
+    while (System.currentTimeMillis() - killed < FAILOVER_LIMIT_MS) {
+      stored = store(successor, "b.txt", second);
+      if (Protocol.STORE_COMPLETE_TOKEN.equals(stored)) break;
+      Thread.sleep(100);
+    }
+    long took = System.currentTimeMillis() - killed;
+    check(
+        "controller " + successor + " took over in " + took + "ms",
+        Protocol.STORE_COMPLETE_TOKEN.equals(stored));
+    check(
+        "a.txt loadable after failover",
+        request(successor, "LOAD a.txt").startsWith(Protocol.LOAD_FROM_TOKEN));
+    check(
+        "a.txt removable after failover",
+        Protocol.REMOVE_COMPLETE_TOKEN.equals(request(successor, "REMOVE a.txt")));
+
+    start(
+        "controller-" + leader + "-restarted", "Controller", leader, REPLICATION, timeout, 100000);
+    String listed = "";
+    long restarted = System.currentTimeMillis();
+    while (System.currentTimeMillis() - restarted < FAILOVER_LIMIT_MS) {
+      Thread.sleep(250);
+      listed = request(leader, "LIST");
+      if (listed.equals("LIST b.txt")) break;
+    }
+    check("restarted controller caught up, " + listed, listed.equals("LIST b.txt"));
+    check(
+        "restarted controller follows",
+        request(leader, "REMOVE b.txt").startsWith(Protocol.NOT_LEADER_TOKEN));
+  }
+
+  /**
+   * Wait for a controller other than the excluded one to accept writes
+   *
+   * @param excluded - controller known to be gone, or -1
+   * @return the leader's port
+   */
+  private int awaitLeader(int excluded) throws Exception {
+    long start = System.currentTimeMillis();
+    while (System.currentTimeMillis() - start < FAILOVER_LIMIT_MS) {
+      for (int port : controllers) {
+        if (port == excluded) continue;
+        // a follower redirects writes, the leader answers this one itself
+        String reply = request(port, "REMOVE failover-probe");
+        if (reply.equals(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN)) return port;
+      }
+      Thread.sleep(100);
+    }
+    throw new IllegalStateException("no leader after " + FAILOVER_LIMIT_MS + "ms");
+  }
+
+  /**
+   * STORE a file through a controller and the dstores it picks
+   *
+   * @return the controller's final reply, or its first if it did not answer STORE_TO
+   */
+  private String store(int cport, String fileName, byte[] data) throws IOException {
+    try (Socket controller = new Socket(InetAddress.getLocalHost(), cport)) {
+      controller.setSoTimeout(timeout * 3);
+      PrintWriter out = new PrintWriter(controller.getOutputStream(), true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+      out.println(Protocol.STORE_TOKEN + " " + fileName + " " + data.length);
+      String reply = in.readLine();
+      if (reply == null || !reply.startsWith(Protocol.STORE_TO_TOKEN)) return reply;
+      String[] ports = reply.split(" ");
+      for (int i = 1; i < ports.length; i++) {
+        try (Socket dstore = new Socket(InetAddress.getLocalHost(), Integer.parseInt(ports[i]))) {
+          dstore.setSoTimeout(timeout);
+          OutputStream dOut = dstore.getOutputStream();
+          BufferedReader dIn = new BufferedReader(new InputStreamReader(dstore.getInputStream()));
+          dOut.write((Protocol.STORE_TOKEN + " " + fileName + " " + data.length + "\n").getBytes());
+          dOut.flush();
+          if (!Protocol.ACK_TOKEN.equals(dIn.readLine())) return "no ACK from dstore " + ports[i];
+          dOut.write(data);
+          dOut.flush();
+        }
+      }
+      return in.readLine();
+    }
+  }
+
+  /**
+   * @return the controller's one line reply, or a description of why there was none
+   */
+  private String request(int cport, String line) {
+    try (Socket controller = new Socket(InetAddress.getLocalHost(), cport)) {
+      controller.setSoTimeout(timeout * 3);
+      new PrintWriter(controller.getOutputStream(), true).println(line);
+      String reply =
+          new BufferedReader(new InputStreamReader(controller.getInputStream())).readLine();
+      return reply == null ? "closed" : reply;
+    } catch (IOException e) {
+      return e.toString();
+    }
+  }
+
+  private void check(String what, boolean passed) {
+    if (passed) {
+      ScreenLogger.justInfo("PASS " + what);
+    } else {
+      failures++;
+      ScreenLogger.justError("FAIL " + what);
+    }
+  }
+
+  private void start(String name, String mainClass, Object... args) throws IOException {
+    StringJoiner peers = new StringJoiner(",");
+    for (int port : controllers) {
+      peers.add(String.valueOf(port));
+    }
+    List<String> command = new ArrayList<>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-Ddss.peers=" + peers);
+    command.add("-Ddss.controllers=" + peers);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(mainClass);
+    for (Object arg : args) {
+      command.add(String.valueOf(arg));
+    }
+    Process process =
+        new ProcessBuilder(command)
+            .directory(dir)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(dir, name + ".log")))
+            .start();
+    processes.put(name, process);
+  }
+
+  private void stopAll() {
+    for (Process process : processes.values()) {
+      process.destroyForcibly();
+    }
+  }
+}
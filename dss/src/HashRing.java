@@ -0,0 +1,59 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Consistent hash ring mapping file names to controller shards. Each shard is placed at many
+ * points on the ring so the namespace spreads evenly, and adding or removing a shard only moves
+ * the names in the ranges it gains or loses, roughly 1/N of them.
+ */
+public class HashRing {
+  private static final int POINTS_PER_SHARD = 128;
+
+  private final List<Integer> shards;
+  private final TreeMap<Long, Integer> points;
+
+  /**
+   * @param shards - controller ports of the shards
+   */
+  public HashRing(Collection<Integer> shards) {
+    if (shards.isEmpty()) throw new IllegalArgumentException("A ring needs at least one shard");
+    this.shards = List.copyOf(new LinkedHashSet<>(shards));
+    this.points = new TreeMap<>();
+    for (int shard : this.shards) {
+      for (int i = 0; i < POINTS_PER_SHARD; i++) {
+        points.put(hash(shard + "#" + i), shard);
+      }
+    }
+  }
+
+  /**
+   * @param fileName - file name
+   * @return controller port of the shard owning the file
+   */
+  public int owner(String fileName) {
+    Map.Entry<Long, Integer> point = points.ceilingEntry(hash(fileName));
+    return point != null ? point.getValue() : points.firstEntry().getValue();
+  }
+
+  public List<Integer> getShards() {
+    return shards;
+  }
+
+  private static long hash(String key) {
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      // every JRE ships MD5
+      throw new IllegalStateException(e);
+    }
+    byte[] digest = md5.digest(key.getBytes(StandardCharsets.UTF_8));
+    long h = 0;
+    for (int i = 0; i < 8; i++) {
+      h = (h << 8) | (digest[i] & 0xff);
+    }
+    return h;
+  }
+}
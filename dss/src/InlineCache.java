@@ -0,0 +1,57 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Contents of tiny files kept by the controller so LOAD_INLINE can answer without a dstore. The
+ * least recently used files are dropped once the cache holds more than its budget.
+ */
+public class InlineCache {
+  private final long capacity;
+  // in access order, eldest first
+  private final LinkedHashMap<String, byte[]> files;
+  private long size;
+
+  /**
+   * @param capacity - bytes of content kept
+   */
+  public InlineCache(long capacity) {
+    this.capacity = capacity;
+    this.files = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * @param file - file name
+   * @return content of the file, or null if not cached
+   */
+  public synchronized byte[] get(String file) {
+    return files.get(file);
+  }
+
+  /**
+   * Cache a file's content, evicting the least recently used files to make room
+   *
+   * @param file - file name
+   * @param data - content
+   */
+  public synchronized void put(String file, byte[] data) {
+    remove(file);
+    if (data.length > capacity) return;
+    files.put(file, data);
+    size += data.length;
+    Iterator<byte[]> eldest = files.values().iterator();
+    while (size > capacity) {
+      size -= eldest.next().length;
+      eldest.remove();
+    }
+  }
+
+  public synchronized void remove(String file) {
+    byte[] data = files.remove(file);
+    if (data != null) size -= data.length;
+  }
+
+  public synchronized void clear() {
+    files.clear();
+    size = 0;
+  }
+}
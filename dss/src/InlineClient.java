@@ -0,0 +1,115 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Base64;
+
+/**
+ * Client-side tiny-file STORE and LOAD. Files up to the controller's inline limit are sent with
+ * STORE_INLINE and loaded with LOAD_INLINE, one round trip to the controller and none to a
+ * dstore. Larger files, and tiny ones the controller no longer caches, go through the dstores as
+ * usual.
+ */
+public class InlineClient {
+  private final int cport;
+  private final int timeout;
+  private final int inlineMax;
+  private final DstorePool pool;
+  private final ScreenLogger log = new ScreenLogger("InlineClient");
+
+  /**
+   * @param cport - controller port
+   * @param timeout - r/w timeout in milliseconds
+   * @param inlineMax - largest file to send inline, the controller's -Ddss.inlineMax
+   * @param pool - data sessions to reuse
+   */
+  public InlineClient(int cport, int timeout, int inlineMax, DstorePool pool) {
+    this.cport = cport;
+    this.timeout = timeout;
+    this.inlineMax = inlineMax;
+    this.pool = pool;
+  }
+
+  /**
+   * Store a file, inline if it is small enough
+   *
+   * @param file - local file
+   * @param fileName - name to store under
+   * @return true if the file was stored inline
+   */
+  public boolean store(File file, String fileName) throws IOException {
+    try (Socket controller = new Socket(InetAddress.getLocalHost(), cport)) {
+      controller.setSoTimeout(timeout * 2);
+      PrintWriter out = new PrintWriter(controller.getOutputStream(), true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+      if (file.length() <= inlineMax) {
+        byte[] data = Files.readAllBytes(file.toPath());
+        out.println(
+            Protocol.STORE_INLINE_TOKEN
+                + " "
+                + fileName
+                + " "
+                + data.length
+                + " "
+                + Base64.getEncoder().encodeToString(data));
+        String[] reply = readReply(in);
+        if (reply[0].equals(Protocol.STORE_COMPLETE_TOKEN)) {
+          log.info(fileName + ": stored inline");
+          return true;
+        }
+        if (!reply[0].equals(Protocol.ERROR_TOO_LARGE_TOKEN)) {
+          throw new IOException("STORE_INLINE " + fileName + " failed: " + reply[0]);
+        }
+        // the controller's limit is lower than ours
+        log.warn(fileName + ": too large to store inline, storing through the dstores");
+      }
+      out.println(Protocol.STORE_TOKEN + " " + fileName + " " + file.length());
+      String[] reply = readReply(in);
+      if (!reply[0].equals(Protocol.STORE_TO_TOKEN)) {
+        throw new IOException("STORE " + fileName + " failed: " + reply[0]);
+      }
+      for (int i = 1; i < reply.length; i++) {
+        try (DstorePool.Connection connection = pool.acquire(Integer.parseInt(reply[i]))) {
+          connection.store(fileName, file);
+        }
+      }
+      reply = readReply(in);
+      if (!reply[0].equals(Protocol.STORE_COMPLETE_TOKEN)) {
+        throw new IOException("STORE " + fileName + " failed: " + reply[0]);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Load a file, from the controller if it holds the content
+   *
+   * @param fileName - file to load
+   * @return file content
+   */
+  public byte[] load(String fileName) throws IOException {
+    try (Socket controller = new Socket(InetAddress.getLocalHost(), cport)) {
+      controller.setSoTimeout(timeout * 2);
+      PrintWriter out = new PrintWriter(controller.getOutputStream(), true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+      out.println(Protocol.LOAD_INLINE_TOKEN + " " + fileName);
+      String[] reply = readReply(in);
+      if (reply[0].equals(Protocol.INLINE_TOKEN)) {
+        // an empty file has no content after its size
+        return reply.length > 2 ? Base64.getDecoder().decode(reply[2]) : new byte[0];
+      }
+      if (!reply[0].equals(Protocol.LOAD_FROM_TOKEN)) {
+        throw new IOException("LOAD_INLINE " + fileName + " failed: " + reply[0]);
+      }
+      try (DstorePool.Connection connection = pool.acquire(Integer.parseInt(reply[1]))) {
+        return connection.load(fileName);
+      }
+    }
+  }
+
+  private static String[] readReply(BufferedReader in) throws IOException {
+    String line = in.readLine();
+    if (line == null) throw new EOFException("Controller closed the connection");
+    return line.split(" ");
+  }
+}
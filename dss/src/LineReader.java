@@ -0,0 +1,30 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads protocol lines straight off a byte stream. Unlike BufferedReader nothing past the line
+ * terminator is consumed, so file data following a command can be read from the same stream.
+ */
+public class LineReader {
+  private LineReader() {}
+
+  /**
+   * Read one line
+   *
+   * @param in - connection input, ideally buffered
+   * @return line without terminator, or null at end of stream
+   */
+  public static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') break;
+      line.write(b);
+    }
+    if (b == -1 && line.size() == 0) return null;
+    String text = line.toString(StandardCharsets.UTF_8);
+    return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+  }
+}
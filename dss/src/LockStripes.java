@@ -0,0 +1,43 @@
+/**
+ * Fixed pool of monitors that per-file state is guarded by. A file always maps to the same
+ * monitor, so operations on one file stay serialised while operations on unrelated files almost
+ * never share a monitor and run in parallel.
+ */
+public class LockStripes {
+  private static final int DEFAULT_STRIPES = 256;
+  private final Object[] stripes;
+  private final int mask;
+
+  public LockStripes() {
+    this(DEFAULT_STRIPES);
+  }
+
+  /**
+   * @param stripes - number of monitors, rounded up to a power of two
+   */
+  public LockStripes(int stripes) {
+    int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+    this.stripes = new Object[size];
+    for (int i = 0; i < size; i++) {
+      this.stripes[i] = new Object();
+    }
+    this.mask = size - 1;
+  }
+
+  /**
+   * Monitor guarding the given key
+   *
+   * @param key - file name
+   * @return monitor to synchronize on
+   */
+  public Object forKey(String key) {
+    int h = key.hashCode();
+    // spread high bits so names differing only in a suffix still land on different stripes
+    h ^= (h >>> 16);
+    return stripes[h & mask];
+  }
+
+  public int size() {
+    return stripes.length;
+  }
+}
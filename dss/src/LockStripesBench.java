@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention benchmark for the Controller's per-file locking. Each operation mimics a STORE_ACK:
+ * a read-modify-write of a file's status string under that file's lock. The same workload is run
+ * against a single global monitor and against {@link LockStripes} for 1..N threads.
+ *
+ * <p>Usage: java LockStripesBench [files] [millisPerRun]
+ */
+public class LockStripesBench {
+  public static void main(String[] args) throws InterruptedException {
+    int files = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    String[] names = new String[files];
+    for (int i = 0; i < files; i++) {
+      names[i] = "file" + i + ".txt";
+    }
+
+    ScreenLogger.justInfo("files=" + files + " cores=" + cores + " run=" + millis + "ms");
+    ScreenLogger.justInfo(
+        String.format(
+            "%8s %16s %16s %8s", "threads", "global ops/s", "striped ops/s", "speedup"));
+    // warm up both paths so the first row is not dominated by JIT compilation
+    run(names, 1, millis, key -> names);
+    run(names, 1, millis, new LockStripes()::forKey);
+
+    List<Integer> threadCounts = new ArrayList<>();
+    for (int threads = 1; threads < cores; threads *= 2) {
+      threadCounts.add(threads);
+    }
+    threadCounts.add(cores);
+    for (int threads : threadCounts) {
+      Object global = new Object();
+      double globalOps = run(names, threads, millis, key -> global);
+      LockStripes stripes = new LockStripes();
+      double stripedOps = run(names, threads, millis, stripes::forKey);
+      ScreenLogger.justInfo(
+          String.format(
+              "%8d %16.0f %16.0f %8.2f", threads, globalOps, stripedOps, stripedOps / globalOps));
+    }
+  }
+
+  private interface LockFor {
+    Object get(String key);
+  }
+
+  private static double run(String[] names, int threads, long millis, LockFor locks)
+      throws InterruptedException {
+    ConcurrentHashMap<String, String> index = new ConcurrentHashMap<>();
+    for (String name : names) {
+      index.put(name, "Storing 0 3");
+    }
+    LongAdder ops = new LongAdder();
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(threads);
+    long[] deadline = new long[1];
+
+    for (int t = 0; t < threads; t++) {
+      new Thread(
+              () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                long local = 0;
+                while (System.nanoTime() < deadline[0]) {
+                  String name = names[random.nextInt(names.length)];
+                  synchronized (locks.get(name)) {
+                    String[] status = index.get(name).split(" ");
+                    int i = (Integer.parseInt(status[1]) + 1) % 3;
+                    index.replace(name, "Storing " + i + " " + status[2]);
+                  }
+                  local++;
+                }
+                ops.add(local);
+                done.countDown();
+              })
+          .start();
+    }
+    deadline[0] = System.nanoTime() + millis * 1_000_000L;
+    start.countDown();
+    done.await();
+    return ops.sum() * 1000.0 / millis;
+  }
+}
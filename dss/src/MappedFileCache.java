@@ -0,0 +1,211 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read-only memory mappings of stored files, shared by every reader of the same file. A LOAD
+ * served through a mapping reads straight from the page cache instead of through heap buffers
+ * filled by read calls, and concurrent LOADs of a hot file reuse one mapping. Each reader has the
+ * pages of a window ahead of it touched on a background thread, so the disk reads overlap the
+ * network transfer.
+ *
+ * <p>A mapping is only reused while the file's identity (file key, size and modification time) is
+ * unchanged, so a name removed and stored again is mapped afresh. Mappings beyond the cache's
+ * budget are dropped least recently used first; the JVM unmaps them once their last reader is
+ * done.
+ */
+public class MappedFileCache {
+  // a single MappedByteBuffer cannot exceed 2 GiB
+  private static final long SEGMENT_SIZE = 1L << 30;
+  private static final int PAGE_SIZE = 4096;
+
+  private final long capacity;
+  private final long readAhead;
+  private final ExecutorService prefetcher;
+  // path -> mapping, in access order
+  private final LinkedHashMap<String, Mapping> mappings;
+  private long mapped;
+
+  /**
+   * @param capacity - bytes of mappings kept for reuse
+   * @param readAhead - bytes each reader prefetches ahead of its position, 0 for none
+   */
+  public MappedFileCache(long capacity, long readAhead) {
+    this.capacity = capacity;
+    this.readAhead = readAhead;
+    this.prefetcher =
+        Executors.newSingleThreadExecutor(
+            task -> {
+              Thread thread = new Thread(task, "read-ahead");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.mappings = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Cache configured by -Ddss.mmapCacheBytes (default 1 GiB) and -Ddss.readAhead (default 4 MiB)
+   */
+  public static MappedFileCache fromSystemProperties() {
+    return new MappedFileCache(
+        Long.getLong("dss.mmapCacheBytes", 1L << 30), Long.getLong("dss.readAhead", 4L << 20));
+  }
+
+  /**
+   * Open a file for reading through its shared mapping
+   *
+   * @param file - file to read
+   * @param offset - first byte to read
+   * @return stream of the file's bytes from the offset to the end
+   */
+  public InputStream open(File file, long offset) throws IOException {
+    return new Reader(mappingOf(file.toPath()), offset);
+  }
+
+  /**
+   * Drop the mapping of a file that is being removed or replaced
+   *
+   * @param file - stored file
+   */
+  public synchronized void forget(File file) {
+    Mapping mapping = mappings.remove(file.toPath().toString());
+    if (mapping != null) mapped -= mapping.size;
+  }
+
+  private Mapping mappingOf(Path path) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    String identity =
+        attributes.fileKey() + " " + attributes.size() + " " + attributes.lastModifiedTime();
+    synchronized (this) {
+      Mapping mapping = mappings.get(path.toString());
+      if (mapping != null && mapping.identity.equals(identity)) return mapping;
+    }
+    // mapped outside the lock; a reader racing on the same file may map it too, one copy is kept
+    Mapping mapping = map(path, attributes.size(), identity);
+    synchronized (this) {
+      Mapping existing = mappings.get(path.toString());
+      if (existing != null && existing.identity.equals(identity)) return existing;
+      if (existing != null) mapped -= existing.size;
+      mappings.put(path.toString(), mapping);
+      mapped += mapping.size;
+      Iterator<Mapping> eldest = mappings.values().iterator();
+      while (mapped > capacity && eldest.hasNext()) {
+        Mapping evicted = eldest.next();
+        if (evicted == mapping) break;
+        eldest.remove();
+        mapped -= evicted.size;
+      }
+    }
+    return mapping;
+  }
+
+  private static Mapping map(Path path, long size, String identity) throws IOException {
+    int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    MappedByteBuffer[] segments = new MappedByteBuffer[count];
+    // the mapping stays valid after the channel is closed
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      for (int i = 0; i < segments.length; i++) {
+        long position = i * SEGMENT_SIZE;
+        long length = Math.min(SEGMENT_SIZE, size - position);
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+      }
+    }
+    return new Mapping(segments, size, identity);
+  }
+
+  /** One file mapped in segments. Only absolute gets are used, so readers never disturb another. */
+  private static final class Mapping {
+    private final MappedByteBuffer[] segments;
+    private final long size;
+    private final String identity;
+    // keeps the page touches of the prefetcher from being optimised away
+    private volatile int touched;
+
+    private Mapping(MappedByteBuffer[] segments, long size, String identity) {
+      this.segments = segments;
+      this.size = size;
+      this.identity = identity;
+    }
+
+    private int read(long position, byte[] b, int off, int len) {
+      MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+      int index = (int) (position % SEGMENT_SIZE);
+      int n = Math.min(len, segment.limit() - index);
+      segment.get(index, b, off, n);
+      return n;
+    }
+
+    /** Fault in the pages of a range, so a reader getting there finds them resident */
+    private void touch(long from, long to) {
+      int sum = 0;
+      long end = Math.min(to, size);
+      for (long position = from - from % PAGE_SIZE; position < end; position += PAGE_SIZE) {
+        sum += segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE));
+      }
+      touched = sum;
+    }
+  }
+
+  /** A reader's position in a shared mapping, with the window prefetched ahead of it */
+  private final class Reader extends InputStream {
+    private final Mapping mapping;
+    private long position;
+    private long prefetched;
+
+    private Reader(Mapping mapping, long offset) {
+      this.mapping = mapping;
+      this.position = Math.max(0, Math.min(offset, mapping.size));
+      this.prefetched = position;
+      prefetch();
+    }
+
+    // a new window is requested once half of the last one has been read
+    private void prefetch() {
+      if (readAhead <= 0 || prefetched >= mapping.size) return;
+      if (prefetched - position > readAhead / 2) return;
+      long from = prefetched;
+      long to = Math.min(mapping.size, position + readAhead);
+      prefetched = to;
+      prefetcher.execute(() -> mapping.touch(from, to));
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (position >= mapping.size) return -1;
+      int n = mapping.read(position, b, off, (int) Math.min(len, mapping.size - position));
+      position += n;
+      prefetch();
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, mapping.size - position));
+      position += skipped;
+      prefetched = Math.max(prefetched, position);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, mapping.size - position);
+    }
+  }
+}
@@ -0,0 +1,254 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Client-side multipart STORE and LOAD for files too large for a single upload. The file is cut
+ * into fixed-size parts that are uploaded in parallel, each to the dstores the controller picks
+ * for it, and committed once all are stored. Parts are streamed from and to disk, so nothing
+ * larger than one transfer buffer is held in memory.
+ *
+ * <p>An upload that fails part way can be retried with the same arguments; parts the controller
+ * already holds are skipped.
+ */
+public class MultipartClient {
+  private static final int PART_ATTEMPTS = 3;
+
+  private final int cport;
+  private final int timeout;
+  private final long partSize;
+  private final int parallelism;
+  private final DstorePool pool;
+  private final ScreenLogger log = new ScreenLogger("MultipartClient");
+
+  /**
+   * @param cport - controller port
+   * @param timeout - r/w timeout in milliseconds
+   * @param partSize - bytes per part
+   * @param parallelism - parts uploaded at the same time
+   * @param pool - data sessions to reuse
+   */
+  public MultipartClient(int cport, int timeout, long partSize, int parallelism, DstorePool pool) {
+    this.cport = cport;
+    this.timeout = timeout;
+    this.partSize = partSize;
+    this.parallelism = parallelism;
+    this.pool = pool;
+  }
+
+  /**
+   * Upload a file in parts, or resume an earlier attempt
+   *
+   * @param file - local file
+   * @param fileName - name to store under
+   */
+  public void upload(File file, String fileName) throws IOException {
+    long size = file.length();
+    int parts = (int) Math.max(1, (size + partSize - 1) / partSize);
+    try (Control control = new Control()) {
+      String[] reply =
+          control.request(Protocol.STORE_MULTIPART_TOKEN + " " + fileName + " " + parts);
+      if (!reply[0].equals(Protocol.ACK_TOKEN)) {
+        throw new IOException("STORE_MULTIPART " + fileName + " failed: " + reply[0]);
+      }
+      Set<Integer> stored = new HashSet<>();
+      for (int i = 1; i < reply.length; i++) {
+        stored.add(Integer.parseInt(reply[i]));
+      }
+      ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<>();
+      for (int part = 0; part < parts; part++) {
+        if (!stored.contains(part)) queue.add(part);
+      }
+      log.info(fileName + ": uploading " + queue.size() + " of " + parts + " parts");
+
+      uploadParts(file, fileName, size, queue);
+
+      reply = control.request(Protocol.COMMIT_MULTIPART_TOKEN + " " + fileName);
+      if (!reply[0].equals(Protocol.STORE_COMPLETE_TOKEN)) {
+        throw new IOException(
+            "COMMIT_MULTIPART " + fileName + " failed: " + String.join(" ", reply));
+      }
+      log.info(fileName + ": multipart upload complete");
+    }
+  }
+
+  /**
+   * Give up on an upload that will not be resumed, freeing its parts and its name
+   *
+   * @param fileName - name the upload was started under
+   */
+  public void abort(String fileName) throws IOException {
+    try (Control control = new Control()) {
+      String[] reply = control.request(Protocol.ABORT_MULTIPART_TOKEN + " " + fileName);
+      if (reply[0].equals(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN)) {
+        throw new FileNotFoundException(fileName);
+      }
+      if (!reply[0].equals(Protocol.REMOVE_COMPLETE_TOKEN)) {
+        throw new IOException("ABORT_MULTIPART " + fileName + " failed: " + reply[0]);
+      }
+      log.info(fileName + ": multipart upload aborted");
+    }
+  }
+
+  /**
+   * Download a multipart file, streaming the parts into place in order
+   *
+   * @param fileName - file to load
+   * @param downloadFolder - destination folder
+   * @return the downloaded file
+   */
+  public File download(String fileName, File downloadFolder) throws IOException {
+    String[] manifest;
+    try (Control control = new Control()) {
+      manifest = control.request(Protocol.LOAD_MULTIPART_TOKEN + " " + fileName);
+    }
+    if (manifest[0].equals(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN)) {
+      throw new FileNotFoundException(fileName);
+    }
+    if (!manifest[0].equals(Protocol.MANIFEST_TOKEN)) {
+      throw new IOException("LOAD_MULTIPART " + fileName + " failed: " + manifest[0]);
+    }
+    int parts = Integer.parseInt(manifest[2]);
+
+    File target = new File(downloadFolder, fileName);
+    try (FileChannel channel =
+        FileChannel.open(
+            target.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      long position = 0;
+      for (int i = 0; i < parts; i++) {
+        String[] entry = manifest[3 + i].split(":");
+        int part = Integer.parseInt(entry[0]);
+        long size = Long.parseLong(entry[1]);
+        String[] ports = entry.length > 2 ? entry[2].split(",") : new String[0];
+        loadPart(MultipartUpload.partName(fileName, part), size, ports, channel, position);
+        position += size;
+      }
+      channel.force(false);
+    }
+    return target;
+  }
+
+  private void uploadParts(File file, String fileName, long size, Queue<Integer> queue)
+      throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+    List<Future<?>> workers = new ArrayList<>();
+    for (int w = 0; w < Math.max(1, parallelism); w++) {
+      workers.add(
+          executor.submit(
+              () -> {
+                // each worker keeps its own controller connection for request/reply ordering
+                try (Control control = new Control()) {
+                  Integer part;
+                  while ((part = queue.poll()) != null) {
+                    long offset = part * partSize;
+                    long length = Math.min(partSize, size - offset);
+                    uploadPart(control, file, fileName, part, offset, length);
+                  }
+                }
+                return null;
+              }));
+    }
+    executor.shutdown();
+    IOException failure = null;
+    for (Future<?> worker : workers) {
+      try {
+        worker.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure =
+              new IOException(fileName + ": upload incomplete, retry to resume", e.getCause());
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(fileName + ": upload interrupted");
+      }
+    }
+    if (failure != null) throw failure;
+  }
+
+  private void uploadPart(
+      Control control, File file, String fileName, int part, long offset, long length)
+      throws IOException {
+    String partName = MultipartUpload.partName(fileName, part);
+    IOException last = null;
+    for (int attempt = 0; attempt < PART_ATTEMPTS; attempt++) {
+      String[] reply =
+          control.request(Protocol.STORE_PART_TOKEN + " " + fileName + " " + part + " " + length);
+      if (!reply[0].equals(Protocol.STORE_TO_TOKEN)) {
+        last = new IOException(partName + ": " + String.join(" ", reply));
+        continue;
+      }
+      try {
+        for (int i = 1; i < reply.length; i++) {
+          try (DstorePool.Connection connection = pool.acquire(Integer.parseInt(reply[i]))) {
+            connection.store(partName, file, offset, length);
+          }
+        }
+      } catch (IOException e) {
+        // the controller still times the part out and answers STORE_PART_FAILED
+        last = e;
+      }
+      String[] outcome = control.readReply();
+      if (outcome[0].equals(Protocol.STORE_PART_COMPLETE_TOKEN)) return;
+      log.warn(partName + ": attempt " + (attempt + 1) + " failed");
+      if (last == null) last = new IOException(partName + ": " + String.join(" ", outcome));
+    }
+    throw last;
+  }
+
+  private void loadPart(
+      String partName, long size, String[] ports, FileChannel channel, long position)
+      throws IOException {
+    IOException last = new FileNotFoundException(partName + " has no replicas");
+    for (String port : ports) {
+      try (DstorePool.Connection connection = pool.acquire(Integer.parseInt(port))) {
+        long read = connection.loadRange(partName, 0, size, channel, position);
+        if (read == size) return;
+        last = new EOFException(partName + ": short read from dstore " + port);
+      } catch (IOException e) {
+        log.warn(partName + ": dstore " + port + " failed, trying next replica");
+        last = e;
+      }
+    }
+    throw last;
+  }
+
+  /** Line-based request/reply connection to the controller */
+  private final class Control implements Closeable {
+    private final Socket socket;
+    private final PrintWriter out;
+    private final BufferedReader in;
+
+    private Control() throws IOException {
+      this.socket = new Socket(InetAddress.getLocalHost(), cport);
+      // part outcomes only arrive after the controller's own ack timeout
+      this.socket.setSoTimeout(timeout * 2);
+      this.out = new PrintWriter(socket.getOutputStream(), true);
+      this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    private String[] request(String line) throws IOException {
+      out.println(line);
+      return readReply();
+    }
+
+    private String[] readReply() throws IOException {
+      String line = in.readLine();
+      if (line == null) throw new EOFException("Controller closed the connection");
+      return line.split(" ");
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+}
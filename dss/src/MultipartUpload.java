@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Controller-side record of a file uploaded in parts. Each part is stored on dstores as its own
+ * object named {@code <file>#part<index>}, possibly on a different set of dstores per part. The
+ * file becomes visible only once every part is stored and the client commits.
+ */
+public class MultipartUpload {
+  public static final String PART_SEPARATOR = "#part";
+
+  private final String file;
+  private final int parts;
+  private final ConcurrentHashMap<Integer, Long> partSizes;
+  private volatile boolean committed;
+  private volatile boolean aborted;
+  private volatile long lastActive;
+
+  public MultipartUpload(String file, int parts) {
+    this.file = file;
+    this.parts = parts;
+    this.partSizes = new ConcurrentHashMap<>();
+    this.lastActive = System.currentTimeMillis();
+  }
+
+  /**
+   * Name of a part object on the dstores
+   *
+   * @param file - multipart file name
+   * @param index - part index, from 0
+   * @return object name
+   */
+  public static String partName(String file, int index) {
+    return file + PART_SEPARATOR + index;
+  }
+
+  /**
+   * File an object belongs to, so acks for parts are accounted against the whole file
+   *
+   * @param objectName - file or part object name
+   * @return the multipart file for a part, the name itself otherwise
+   */
+  public static String ownerOf(String objectName) {
+    int separator = objectName.lastIndexOf(PART_SEPARATOR);
+    if (separator <= 0) return objectName;
+    String index = objectName.substring(separator + PART_SEPARATOR.length());
+    if (index.isEmpty() || !index.chars().allMatch(Character::isDigit)) return objectName;
+    return objectName.substring(0, separator);
+  }
+
+  /**
+   * @param name - file or object name
+   * @return true if the name is that of a part object, which clients cannot store files under
+   */
+  public static boolean isPartName(String name) {
+    return !ownerOf(name).equals(name);
+  }
+
+  public String getFile() {
+    return file;
+  }
+
+  public int getParts() {
+    return parts;
+  }
+
+  public boolean isCommitted() {
+    return committed;
+  }
+
+  public void commit() {
+    committed = true;
+  }
+
+  public boolean isAborted() {
+    return aborted;
+  }
+
+  /** Refuse further parts, the upload is being thrown away */
+  public void abort() {
+    aborted = true;
+  }
+
+  /** Record client activity, which keeps the upload from expiring */
+  public void touch() {
+    lastActive = System.currentTimeMillis();
+  }
+
+  /**
+   * @return milliseconds since the client last started or resumed the upload or sent a part
+   */
+  public long idleMillis() {
+    return System.currentTimeMillis() - lastActive;
+  }
+
+  public void partStored(int index, long size) {
+    partSizes.put(index, size);
+  }
+
+  public boolean isPartStored(int index) {
+    return partSizes.containsKey(index);
+  }
+
+  public long partSize(int index) {
+    return partSizes.get(index);
+  }
+
+  /**
+   * @return indexes of parts not stored yet, in order
+   */
+  public List<Integer> missingParts() {
+    List<Integer> missing = new ArrayList<>();
+    for (int i = 0; i < parts; i++) {
+      if (!partSizes.containsKey(i)) missing.add(i);
+    }
+    return missing;
+  }
+
+  public long totalSize() {
+    long total = 0;
+    for (long size : partSizes.values()) {
+      total += size;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,131 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound side of a single connection. Every text message sent to a peer goes through the one
+ * channel owned by that peer's socket, so concurrent handlers never interleave partial lines.
+ *
+ * <p>Messages are queued and written by whichever caller holds the write lock. That caller
+ * drains everything queued so far and flushes once, so bursts of messages to the same peer (e.g.
+ * REMOVE to a dstore, STORE_ACK to the controller) go out in a single write.
+ */
+public class OutboundChannel {
+  private final Socket socket;
+  private final OutputStream out;
+  private final ConcurrentLinkedQueue<String> queue;
+  private final ReentrantLock writeLock;
+
+  public OutboundChannel(Socket socket) throws IOException {
+    this.socket = socket;
+    this.out = new BufferedOutputStream(socket.getOutputStream());
+    this.queue = new ConcurrentLinkedQueue<>();
+    this.writeLock = new ReentrantLock();
+  }
+
+  /**
+   * Queue a message and flush it, together with anything else pending, unless another thread is
+   * already writing, in which case that thread picks it up.
+   *
+   * @param line - message without line terminator
+   */
+  public void send(String line) {
+    queue.add(line);
+    drain();
+  }
+
+  /**
+   * Write raw bytes to the peer after any pending messages. Used for file contents that follow a
+   * text header on the same connection.
+   *
+   * @param data - bytes to send
+   * @param offset - start offset in data
+   * @param length - number of bytes to send
+   */
+  public void sendBytes(byte[] data, int offset, int length) throws IOException {
+    writeLock.lock();
+    try {
+      writeQueued();
+      out.write(data, offset, length);
+      out.flush();
+    } finally {
+      writeLock.unlock();
+    }
+    // messages queued while the lock was held were left for this writer
+    drain();
+  }
+
+  public Socket getSocket() {
+    return socket;
+  }
+
+  private void drain() {
+    while (!queue.isEmpty()) {
+      if (!writeLock.tryLock()) {
+        // current writer re-checks the queue before releasing
+        return;
+      }
+      try {
+        writeQueued();
+        out.flush();
+      } catch (IOException e) {
+        queue.clear();
+        e.printStackTrace();
+        return;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  private void writeQueued() throws IOException {
+    String line;
+    while ((line = queue.poll()) != null) {
+      out.write(line.getBytes(StandardCharsets.UTF_8));
+      out.write('\n');
+    }
+  }
+
+  /** The channels of a server's open connections, one per socket, created on first use */
+  public static final class Registry {
+    private final ConcurrentHashMap<Socket, OutboundChannel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * @param peer - connected socket
+     * @return the socket's channel
+     */
+    public OutboundChannel get(Socket peer) throws IOException {
+      OutboundChannel channel = channels.get(peer);
+      if (channel == null) {
+        channel = new OutboundChannel(peer);
+        OutboundChannel existing = channels.putIfAbsent(peer, channel);
+        if (existing != null) channel = existing;
+      }
+      return channel;
+    }
+
+    /**
+     * Send a message to a peer through its connection's channel
+     *
+     * @param peer - connected socket
+     * @param message - message without line terminator
+     */
+    public void send(Socket peer, String message) {
+      try {
+        get(peer).send(message);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    /** Forget the channel of a connection that closed */
+    public void remove(Socket peer) {
+      channels.remove(peer);
+    }
+  }
+}
@@ -0,0 +1,236 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client-side parallel fetch. Asks the controller for every replica of a file (LOAD_ALL), splits
+ * the file into chunks and pulls them from all replicas at once with LOAD_RANGE, writing each
+ * chunk straight to its position in a preallocated file.
+ *
+ * <p>Workers share one queue of chunks, so a fast dstore naturally takes more of them. Once the
+ * queue is empty an idle worker steals the longest-running chunk of a slower dstore and fetches
+ * it again; whichever copy lands first counts. A dstore that fails drops out and its chunk goes
+ * back on the queue.
+ */
+public class ParallelDownloader {
+  private final int cport;
+  private final int timeout;
+  private final int chunkSize;
+  private final int streamsPerDstore;
+  private final DstorePool pool;
+  private final ScreenLogger log = new ScreenLogger("ParallelDownloader");
+
+  /**
+   * @param cport - controller port
+   * @param timeout - r/w timeout in milliseconds
+   * @param chunkSize - bytes per range request
+   * @param streamsPerDstore - concurrent range requests per dstore
+   * @param pool - data sessions to reuse
+   */
+  public ParallelDownloader(
+      int cport, int timeout, int chunkSize, int streamsPerDstore, DstorePool pool) {
+    this.cport = cport;
+    this.timeout = timeout;
+    this.chunkSize = chunkSize;
+    this.streamsPerDstore = streamsPerDstore;
+    this.pool = pool;
+  }
+
+  /**
+   * Download a file into a folder
+   *
+   * @param fileName - file to load
+   * @param downloadFolder - destination folder
+   * @return the downloaded file
+   */
+  public File download(String fileName, File downloadFolder) throws IOException {
+    String[] replicas = locate(fileName);
+    long size = Long.parseLong(replicas[1]);
+    List<Integer> ports = new ArrayList<>();
+    for (int i = 2; i < replicas.length; i++) {
+      ports.add(Integer.parseInt(replicas[i]));
+    }
+
+    File target = new File(downloadFolder, fileName);
+    try (FileChannel channel =
+        FileChannel.open(
+            target.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      // preallocate so every chunk can be written at its final position
+      if (size > 0) {
+        channel.write(ByteBuffer.allocate(1), size - 1);
+      }
+      new Transfer(fileName, size, channel).run(ports);
+      channel.force(false);
+    }
+    log.info(fileName + ": " + size + " bytes fetched from " + ports.size() + " dstores");
+    return target;
+  }
+
+  private String[] locate(String fileName) throws IOException {
+    try (Socket controller = new Socket(InetAddress.getLocalHost(), cport)) {
+      controller.setSoTimeout(timeout);
+      PrintWriter out = new PrintWriter(controller.getOutputStream(), true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+      out.println(Protocol.LOAD_ALL_TOKEN + " " + fileName);
+      String line = in.readLine();
+      if (line == null) throw new EOFException("Controller closed the connection");
+      String[] args = line.split(" ");
+      switch (args[0]) {
+        case Protocol.LOAD_FROM_ALL_TOKEN -> {
+          return args;
+        }
+        case Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN -> throw new FileNotFoundException(fileName);
+        default -> throw new IOException("LOAD_ALL " + fileName + " failed: " + line);
+      }
+    }
+  }
+
+  /** State of one download, shared by its workers */
+  private final class Transfer {
+    private final String fileName;
+    private final long size;
+    private final FileChannel channel;
+    private final ConcurrentLinkedQueue<Long> queue;
+    private final Set<Long> done;
+    private final ConcurrentHashMap<Long, Long> inFlight;
+    private final Set<Long> stolen;
+    private final AtomicInteger liveWorkers;
+    private final int chunks;
+
+    private Transfer(String fileName, long size, FileChannel channel) {
+      this.fileName = fileName;
+      this.size = size;
+      this.channel = channel;
+      this.queue = new ConcurrentLinkedQueue<>();
+      for (long offset = 0; offset < size; offset += chunkSize) {
+        queue.add(offset);
+      }
+      this.chunks = queue.size();
+      this.done = ConcurrentHashMap.newKeySet();
+      this.inFlight = new ConcurrentHashMap<>();
+      this.stolen = ConcurrentHashMap.newKeySet();
+      this.liveWorkers = new AtomicInteger();
+    }
+
+    private void run(List<Integer> ports) throws IOException {
+      if (chunks == 0) return;
+      int workers = ports.size() * Math.max(1, streamsPerDstore);
+      liveWorkers.set(workers);
+      ExecutorService executor = Executors.newFixedThreadPool(workers);
+      try {
+        for (int port : ports) {
+          for (int s = 0; s < Math.max(1, streamsPerDstore); s++) {
+            executor.execute(() -> work(port));
+          }
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+          throw new IOException(fileName + ": download did not finish");
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(fileName + ": download interrupted");
+      }
+      if (done.size() < chunks) {
+        throw new IOException(
+            fileName + ": " + (chunks - done.size()) + " chunks could not be fetched");
+      }
+    }
+
+    private void work(int port) {
+      try {
+        while (done.size() < chunks) {
+          Long offset = queue.poll();
+          if (offset == null) offset = steal();
+          if (offset == null) {
+            if (!awaitWork()) return;
+            continue;
+          }
+          if (done.contains(offset)) continue;
+          inFlight.putIfAbsent(offset, System.nanoTime());
+          try {
+            fetch(port, offset);
+          } catch (IOException e) {
+            log.warn(fileName + ": dstore " + port + " dropped out: " + e.getMessage());
+            if (!done.contains(offset)) queue.add(offset);
+            return;
+          } finally {
+            inFlight.remove(offset);
+            changed();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        liveWorkers.decrementAndGet();
+        changed();
+      }
+    }
+
+    /** Fetch one chunk, waiting out moments when every session to the dstore is busy */
+    private void fetch(int port, long offset) throws IOException {
+      while (!done.contains(offset)) {
+        try (DstorePool.Connection connection = pool.acquire(port)) {
+          connection.loadRange(fileName, offset, Math.min(chunkSize, size - offset), channel);
+          done.add(offset);
+        } catch (DstorePool.PoolExhaustedException e) {
+          log.debug(fileName + ": " + e.getMessage() + ", retrying");
+        }
+      }
+    }
+
+    /**
+     * Wait until a chunk is handed back, one finishes or a worker leaves
+     *
+     * @return false if this worker should stop: it is the last one and nothing is left in
+     *     flight that a failing peer could hand back
+     */
+    private synchronized boolean awaitWork() throws InterruptedException {
+      while (done.size() < chunks && queue.isEmpty() && !stealable()) {
+        if (liveWorkers.get() == 1 && inFlight.isEmpty()) return false;
+        wait();
+      }
+      return true;
+    }
+
+    /** Wake idle workers after the queue, the chunks in flight or the workers changed */
+    private synchronized void changed() {
+      notifyAll();
+    }
+
+    private boolean stealable() {
+      for (Long offset : inFlight.keySet()) {
+        if (!stolen.contains(offset)) return true;
+      }
+      return false;
+    }
+
+    /**
+     * Pick the longest-running chunk that nobody has duplicated yet
+     *
+     * @return offset of the chunk to fetch again, or null
+     */
+    private Long steal() {
+      Long oldest = null;
+      long oldestStart = Long.MAX_VALUE;
+      for (Map.Entry<Long, Long> entry : inFlight.entrySet()) {
+        if (entry.getValue() < oldestStart && !stolen.contains(entry.getKey())) {
+          oldest = entry.getKey();
+          oldestStart = entry.getValue();
+        }
+      }
+      if (oldest != null && stolen.add(oldest)) return oldest;
+      return null;
+    }
+  }
+}
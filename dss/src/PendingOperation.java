@@ -0,0 +1,73 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A STORE or REMOVE waiting for dstore acks. Ack handlers count down, and whichever of the last
+ * ack or the timer fires first decides the outcome; the other one becomes a no-op. No thread is
+ * parked while the operation is pending.
+ */
+public class PendingOperation {
+  private final AtomicInteger remaining;
+  private final AtomicBoolean finished;
+  private final Runnable onComplete;
+  private final Runnable onExpire;
+  private volatile TimerWheel.Timeout timeout;
+
+  /**
+   * @param acks - number of acks needed to complete
+   * @param onComplete - run once all acks have arrived
+   * @param onExpire - run if the timeout fires first
+   */
+  public PendingOperation(int acks, Runnable onComplete, Runnable onExpire) {
+    this.remaining = new AtomicInteger(acks);
+    this.finished = new AtomicBoolean(false);
+    this.onComplete = onComplete;
+    this.onExpire = onExpire;
+  }
+
+  /**
+   * Arm the expiry timer
+   *
+   * @param timers - wheel driving the expiry
+   * @param delay - timeout in milliseconds
+   */
+  public void start(TimerWheel timers, long delay) {
+    timeout = timers.schedule(this::expire, delay);
+  }
+
+  /**
+   * Record one ack, completing the operation if it was the last one needed
+   *
+   * @return true if this ack completed the operation
+   */
+  public boolean ack() {
+    if (remaining.decrementAndGet() != 0) return false;
+    if (!finished.compareAndSet(false, true)) return false;
+    TimerWheel.Timeout t = timeout;
+    if (t != null) t.cancel();
+    onComplete.run();
+    return true;
+  }
+
+  /**
+   * End the operation at once as if it had timed out, unless it already finished
+   *
+   * @return true if this call ended it
+   */
+  public boolean fail() {
+    if (!finished.compareAndSet(false, true)) return false;
+    TimerWheel.Timeout t = timeout;
+    if (t != null) t.cancel();
+    onExpire.run();
+    return true;
+  }
+
+  public boolean isFinished() {
+    return finished.get();
+  }
+
+  private void expire() {
+    if (!finished.compareAndSet(false, true)) return;
+    onExpire.run();
+  }
+}
@@ -8,17 +8,42 @@ public class Protocol {
 	public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
 	public final static String RELOAD_TOKEN = "RELOAD";
 	public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
+	public final static String LOAD_ALL_TOKEN = "LOAD_ALL"; // to Controller, asks for every replica
+	public final static String LOAD_RANGE_TOKEN = "LOAD_RANGE"; // to Dstores, <filename> <offset> <length>
+	public final static String STORE_HASHED_TOKEN = "STORE_HASHED"; // <filename> <size> <sha256>
+	public final static String STORE_MULTIPART_TOKEN = "STORE_MULTIPART"; // <filename> <parts>
+	public final static String STORE_PART_TOKEN = "STORE_PART"; // <filename> <index> <size>
+	public final static String COMMIT_MULTIPART_TOKEN = "COMMIT_MULTIPART";
+	public final static String LOAD_MULTIPART_TOKEN = "LOAD_MULTIPART";
+	public final static String ABORT_MULTIPART_TOKEN = "ABORT_MULTIPART"; // <filename>, drops the parts of an uncommitted upload
+	public final static String DATA_SESSION_TOKEN = "DATA_SESSION"; // to Dstores, keeps the connection open
+	public final static String STORE_INLINE_TOKEN = "STORE_INLINE"; // <filename> <size> <base64>, tiny files only
+	public final static String LOAD_INLINE_TOKEN = "LOAD_INLINE";
 	
 	// messages sent by the Controller
 	public final static String STORE_TO_TOKEN = "STORE_TO";
 	public final static String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
 	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
+	public final static String LOAD_FROM_ALL_TOKEN = "LOAD_FROM_ALL";
+	public final static String STORE_PART_COMPLETE_TOKEN = "STORE_PART_COMPLETE";
+	public final static String STORE_PART_FAILED_TOKEN = "STORE_PART_FAILED";
+	public final static String MANIFEST_TOKEN = "MANIFEST";
 	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
 	public final static String REBALANCE_TOKEN = "REBALANCE";
+	public final static String LINK_TOKEN = "LINK"; // to Dstores, <existing> <filename>
+	public final static String LINK_FAILED_TOKEN = "LINK_FAILED"; // from Dstores <filename>, then to the STORE_HASHED client
 	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
 	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
 	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
 	public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
+	public final static String ERROR_PARTS_MISSING_TOKEN = "ERROR_PARTS_MISSING";
+	public final static String ERROR_INVALID_NAME_TOKEN = "ERROR_INVALID_NAME"; // file names cannot end in #part<index>
+	public final static String NOT_LEADER_TOKEN = "NOT_LEADER"; // follower controller, retry at <port>
+	public final static String ERROR_NOT_REPLICATED_TOKEN = "ERROR_NOT_REPLICATED"; // no majority confirmed the change, it may not survive a failover
+	public final static String INLINE_TOKEN = "INLINE"; // <size> <base64>, answers LOAD_INLINE
+	public final static String ERROR_TOO_LARGE_TOKEN = "ERROR_TOO_LARGE"; // STORE_INLINE over the inline limit
+	public final static String ERROR_BAD_REQUEST_TOKEN = "ERROR_BAD_REQUEST"; // request whose sizes, indexes or content do not parse or match
+	public final static String STORE_BATCH_TOKEN = "STORE_BATCH"; // to Dstores, <n> then (<filename> <size> bytes)*n
 	
 	// messages sent by Dstores
 	public final static String ACK_TOKEN = "ACK";
@@ -27,4 +52,37 @@ public class Protocol {
 	public final static String JOIN_TOKEN = "JOIN";
 	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+	public final static String DATA_TOKEN = "DATA"; // precedes file content on a data session
+	public final static String DEFLATE_TOKEN = "DEFLATE"; // data session accepts, and DATA carries, deflated blocks
+	public final static String OVERLOADED_TOKEN = "OVERLOADED"; // dstore over its admission limits
+	public final static String AVAILABLE_TOKEN = "AVAILABLE"; // dstore back under its limits
+	
+	// messages between the controllers of a group
+	public final static String PEER_TOKEN = "PEER";
+	public final static String HEARTBEAT_TOKEN = "HEARTBEAT"; // <port> <leading> <epoch> <seq>
+	public final static String REPL_TOKEN = "REPL"; // <epoch> <seq> <entry>
+	public final static String REPL_ACK_TOKEN = "REPL_ACK";
+	public final static String SYNC_TOKEN = "SYNC";
+	public final static String SNAPSHOT_TOKEN = "SNAPSHOT";
+	public final static String SNAPSHOT_END_TOKEN = "SNAPSHOT_END";
+	public final static String STORED_TOKEN = "STORED"; // replicated entries
+	public final static String MULTIPART_TOKEN = "MULTIPART";
+	public final static String REMOVED_TOKEN = "REMOVED";
+	public final static String INLINED_TOKEN = "INLINED"; // tiny file not yet on its dstores
+	
+	// messages between a shard router and the controllers
+	public final static String ADD_SHARD_TOKEN = "ADD_SHARD"; // to the router, <port>
+	public final static String REMOVE_SHARD_TOKEN = "REMOVE_SHARD"; // to the router, <port>
+	public final static String SHARDS_TOKEN = "SHARDS";
+	public final static String ERROR_SHARD_TOKEN = "ERROR_SHARD";
+	public final static String KEYS_TOKEN = "KEYS";
+	public final static String EXPORT_TOKEN = "EXPORT"; // <filename>
+	public final static String ENTRY_TOKEN = "ENTRY"; // <replicated entry>
+	public final static String BUSY_TOKEN = "BUSY";
+	public final static String IMPORT_TOKEN = "IMPORT"; // <replicated entry>
+	public final static String DROP_TOKEN = "DROP"; // <filename> [BUSY], with BUSY only if not stored yet
+	
+	// anti-entropy between the controller and dstores, see StoreDigest
+	public final static String DIGEST_TOKEN = "DIGEST"; // to Dstores <buckets>, reply <digest> per bucket
+	public final static String DIGEST_FILES_TOKEN = "DIGEST_FILES"; // to Dstores <buckets> <bucket> ..., reply (<filename> <size>)*
 }
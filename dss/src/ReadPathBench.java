@@ -0,0 +1,195 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Throughput of the ways a dstore can serve a LOAD, over a loopback connection to a reader that
+ * discards what it gets, for file sizes from 4 KiB up to a maximum growing 16x a step:
+ *
+ * <ul>
+ *   <li>stream: file stream copied in 64 KiB chunks, the default read path
+ *   <li>transferTo: FileChannel.transferTo, zero copy from the page cache to the socket
+ *   <li>mmap: {@link MappedFileCache} copied in 64 KiB chunks, the read path with -Ddss.mmap
+ * </ul>
+ *
+ * <p>Files are read right after being written, so the page cache is warm; drop it between runs to
+ * see cold reads. Each size is sent repeatedly until about 1 GiB has gone through.
+ *
+ * <p>Usage: java ReadPathBench [maxSize, e.g. 256m or 4g] [readAheadBytes] [dir]
+ */
+public class ReadPathBench {
+  private static final int CHUNK = 64 * 1024;
+  private static final long BYTES_PER_RUN = 1L << 30;
+
+  public static void main(String[] args) throws Exception {
+    long maxSize = args.length > 0 ? parseSize(args[0]) : 256L << 20;
+    long readAhead = args.length > 1 ? parseSize(args[1]) : 4L << 20;
+    File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+
+    List<Long> sizes = new ArrayList<>();
+    for (long size = 4096; size <= maxSize; size *= 16) {
+      sizes.add(size);
+    }
+
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      SocketChannel out = SocketChannel.open(server.getLocalAddress());
+      Sink sink = new Sink(server.accept());
+      sink.start();
+      OutputStream stream = new BufferedOutputStream(out.socket().getOutputStream(), CHUNK);
+
+      ScreenLogger.justInfo("readAhead=" + readAhead + " dir=" + dir);
+      ScreenLogger.justInfo(
+          String.format(
+              "%10s %16s %16s %16s", "size", "stream MB/s", "transferTo MB/s", "mmap MB/s"));
+      for (long size : sizes) {
+        File file = File.createTempFile("readpath", ".bin", dir);
+        try {
+          fill(file, size);
+          MappedFileCache cache = new MappedFileCache(Long.MAX_VALUE, readAhead);
+          int reps = (int) Math.max(1, Math.min(10000, BYTES_PER_RUN / size));
+          // warm up every path so the first rows are not dominated by JIT compilation
+          run(sink, size, 1, () -> sendStream(new FileInputStream(file), stream, size));
+          run(sink, size, 1, () -> sendTransferTo(file, out, size));
+          run(sink, size, 1, () -> sendStream(cache.open(file, 0), stream, size));
+          double streamed =
+              run(sink, size, reps, () -> sendStream(new FileInputStream(file), stream, size));
+          double transferred = run(sink, size, reps, () -> sendTransferTo(file, out, size));
+          double mapped =
+              run(sink, size, reps, () -> sendStream(cache.open(file, 0), stream, size));
+          ScreenLogger.justInfo(
+              String.format(
+                  "%10s %16.0f %16.0f %16.0f", format(size), streamed, transferred, mapped));
+        } finally {
+          file.delete();
+        }
+      }
+      out.close();
+    }
+  }
+
+  private interface Send {
+    void run() throws IOException;
+  }
+
+  /**
+   * @return throughput in MB/s of sending the file reps times, until the reader has it all
+   */
+  private static double run(Sink sink, long size, int reps, Send send)
+      throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    long target = sink.received() + size * reps;
+    for (int i = 0; i < reps; i++) {
+      send.run();
+    }
+    sink.await(target);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    return size * reps / seconds / 1e6;
+  }
+
+  /** The default dstore path: chunks read into a heap buffer and written to the socket */
+  private static void sendStream(InputStream file, OutputStream out, long size)
+      throws IOException {
+    try (InputStream in = file) {
+      byte[] buffer = new byte[(int) Math.min(size, CHUNK)];
+      long remaining = size;
+      while (remaining > 0) {
+        int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (n < 0) throw new IOException("file truncated");
+        out.write(buffer, 0, n);
+        remaining -= n;
+      }
+      out.flush();
+    }
+  }
+
+  private static void sendTransferTo(File file, SocketChannel out, long size) throws IOException {
+    try (FileChannel channel = new FileInputStream(file).getChannel()) {
+      long position = 0;
+      while (position < size) {
+        position += channel.transferTo(position, size - position, out);
+      }
+    }
+  }
+
+  private static void fill(File file, long size) throws IOException {
+    byte[] block = new byte[1 << 20];
+    ThreadLocalRandom.current().nextBytes(block);
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      for (long written = 0; written < size; written += block.length) {
+        out.write(block, 0, (int) Math.min(block.length, size - written));
+      }
+    }
+  }
+
+  private static long parseSize(String size) {
+    String digits = size.toLowerCase();
+    int shift = 0;
+    switch (digits.charAt(digits.length() - 1)) {
+      case 'k' -> shift = 10;
+      case 'm' -> shift = 20;
+      case 'g' -> shift = 30;
+      default -> {
+        return Long.parseLong(digits);
+      }
+    }
+    return Long.parseLong(digits.substring(0, digits.length() - 1)) << shift;
+  }
+
+  private static String format(long size) {
+    if (size >= 1L << 30) return (size >> 30) + " GiB";
+    if (size >= 1L << 20) return (size >> 20) + " MiB";
+    return (size >> 10) + " KiB";
+  }
+
+  /** Reads and discards everything sent, counting the bytes */
+  private static final class Sink extends Thread {
+    private final SocketChannel in;
+    private long received;
+
+    private Sink(SocketChannel in) {
+      this.in = in;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+      try {
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+          buffer.clear();
+          synchronized (this) {
+            received += n;
+            notifyAll();
+          }
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    private synchronized long received() {
+      return received;
+    }
+
+    private synchronized void await(long target) throws InterruptedException {
+      while (received < target) {
+        wait();
+      }
+    }
+  }
+}
@@ -0,0 +1,425 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Thin router in front of several controllers, each owning the metadata for a slice of the file
+ * namespace picked by a {@link HashRing}. Clients talk to the router exactly as to a controller:
+ * requests naming a file are relayed to the owning shard over a connection kept per client and
+ * shard, so replies such as STORE_COMPLETE and state such as RELOAD attempts stay with the right
+ * shard, while LIST is sent to every shard and the results merged. Dstores join every shard
+ * directly (dss.controllers) and are shared by all of them, so shards run with
+ * -Ddss.sharedDstores=true to keep their anti-entropy rounds off each other's files.
+ *
+ * <p>An operator can split the namespace onto a new shard with ADD_SHARD <port>, or drain a shard
+ * with REMOVE_SHARD <port>. The router switches to the new ring at once and moves the metadata of
+ * every file whose owner changes with KEYS, EXPORT, IMPORT and DROP; file data stays where it is
+ * on the dstores. Resharding runs in the background, one change at a time, and the operator gets
+ * the reply once it is over. Requests for files that are moving wait until the move is over, up
+ * to the timeout, after which they get ERROR_SHARD; all others carry on.
+ *
+ * <p>Replies from different shards are relayed as they arrive, so a client must wait for the
+ * reply to one request before sending the next, as the coursework client does.
+ */
+public class ShardRouter {
+  private final int timeout;
+  private final ScreenLogger log;
+  private final ExecutorService connections;
+  // one reshard at a time, off the connection threads
+  private final ExecutorService resharding;
+  private final OutboundChannel.Registry channels;
+  // guards ring and previous; requests for files moving between them wait on it
+  private final Object routing;
+  private HashRing ring;
+  private HashRing previous;
+  public ServerSocket ss;
+
+  /**
+   * @param port - port to accept clients on
+   * @param shards - controller ports of the initial shards
+   * @param timeout - controller timeout in milliseconds
+   */
+  public ShardRouter(int port, List<Integer> shards, int timeout) {
+    this.timeout = timeout;
+    this.log = new ScreenLogger("ShardRouter");
+    this.connections = Executors.newCachedThreadPool();
+    this.resharding = Executors.newSingleThreadExecutor();
+    this.channels = new OutboundChannel.Registry();
+    this.routing = new Object();
+    this.ring = new HashRing(shards);
+    try {
+      ss = new ServerSocket(port);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void send(Socket peer, String message) {
+    channels.send(peer, message);
+  }
+
+  public void start() {
+    log.info("Routing to shards " + ring.getShards());
+    while (true) {
+      try {
+        Socket client = ss.accept();
+        connections.execute(() -> serveClient(client));
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void serveClient(Socket client) {
+    // this client's connection to each shard, opened on first use
+    Map<Integer, Upstream> upstreams = new HashMap<>();
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] args = line.split(" ");
+        switch (args[0]) {
+          case Protocol.LIST_TOKEN -> send(client, listAll());
+          case Protocol.ADD_SHARD_TOKEN -> {
+            int shard = Integer.parseInt(args[1]);
+            resharding.execute(() -> send(client, addShard(shard)));
+          }
+          case Protocol.REMOVE_SHARD_TOKEN -> {
+            int shard = Integer.parseInt(args[1]);
+            resharding.execute(() -> send(client, removeShard(shard)));
+          }
+          case Protocol.STORE_TOKEN,
+              Protocol.STORE_HASHED_TOKEN,
+              Protocol.STORE_INLINE_TOKEN,
+              Protocol.LOAD_TOKEN,
+              Protocol.LOAD_INLINE_TOKEN,
+              Protocol.RELOAD_TOKEN,
+              Protocol.LOAD_ALL_TOKEN,
+              Protocol.REMOVE_TOKEN,
+              Protocol.STORE_MULTIPART_TOKEN,
+              Protocol.STORE_PART_TOKEN,
+              Protocol.COMMIT_MULTIPART_TOKEN,
+              Protocol.LOAD_MULTIPART_TOKEN,
+              Protocol.ABORT_MULTIPART_TOKEN -> {
+            int shard = route(args[1]);
+            if (shard < 0) {
+              send(client, Protocol.ERROR_SHARD_TOKEN + " " + args[1] + " is being moved");
+              log.warn(args[1] + ": still moving after " + timeout + "ms");
+              continue;
+            }
+            Upstream upstream = upstreams.get(shard);
+            if (upstream == null || upstream.socket.isClosed()) {
+              upstream = new Upstream(shard, client);
+              upstreams.put(shard, upstream);
+            }
+            upstream.channel.send(line);
+          }
+          default -> {
+            log.error("Invalid Token");
+            log.error(line);
+          }
+        }
+      }
+    } catch (IOException e) {
+      log.warn("Client connection closed: " + e.getMessage());
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while routing");
+    } finally {
+      for (Upstream upstream : upstreams.values()) {
+        upstream.close();
+      }
+      channels.remove(client);
+      try {
+        client.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Shard owning a file, waiting first, up to the timeout, if the file is being moved to another
+   * shard
+   *
+   * @param fileName - file name
+   * @return controller port of the owning shard, or -1 if the file is still moving
+   */
+  private int route(String fileName) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (routing) {
+      while (previous != null && previous.owner(fileName) != ring.owner(fileName)) {
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) return -1;
+        routing.wait(wait);
+      }
+      return ring.owner(fileName);
+    }
+  }
+
+  /**
+   * Ask every shard for its files and merge the answers. During a move a file may be listed by
+   * two shards, so duplicates are dropped.
+   *
+   * @return LIST reply, or the first error a shard answered with
+   */
+  private String listAll() {
+    List<Integer> shards;
+    synchronized (routing) {
+      Set<Integer> all = new LinkedHashSet<>(ring.getShards());
+      if (previous != null) all.addAll(previous.getShards());
+      shards = new ArrayList<>(all);
+    }
+    Set<String> files = new LinkedHashSet<>();
+    for (int shard : shards) {
+      try (ShardConnection connection = new ShardConnection(shard)) {
+        String[] reply = connection.request(Protocol.LIST_TOKEN).split(" ");
+        if (!reply[0].equals(Protocol.LIST_TOKEN)) return String.join(" ", reply);
+        files.addAll(Arrays.asList(reply).subList(1, reply.length));
+      } catch (IOException e) {
+        log.error("LIST failed on shard " + shard + ": " + e.getMessage());
+        return Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN;
+      }
+    }
+    StringBuilder reply = new StringBuilder(Protocol.LIST_TOKEN);
+    for (String file : files) {
+      reply.append(" ").append(file);
+    }
+    return reply.toString();
+  }
+
+  private String addShard(int shard) {
+    List<Integer> shards;
+    synchronized (routing) {
+      shards = new ArrayList<>(ring.getShards());
+    }
+    if (shards.contains(shard)) return Protocol.SHARDS_TOKEN + " " + join(shards);
+    shards.add(shard);
+    return reshard(shards);
+  }
+
+  private String removeShard(int shard) {
+    List<Integer> shards;
+    synchronized (routing) {
+      shards = new ArrayList<>(ring.getShards());
+    }
+    if (!shards.remove((Integer) shard) || shards.isEmpty()) {
+      return Protocol.ERROR_SHARD_TOKEN + " cannot remove " + shard;
+    }
+    return reshard(shards);
+  }
+
+  /**
+   * Switch to a new set of shards and move every file whose owner changes. Files still being
+   * stored or removed are retried until they settle; passes repeat until one finds nothing left
+   * to move, which also catches files whose STORE reached the old owner after the switch. Only
+   * ever run on the resharding thread.
+   *
+   * @param shards - new set of shards
+   * @return SHARDS reply listing the new set, or an error
+   */
+  private String reshard(List<Integer> shards) {
+    HashRing next = new HashRing(shards);
+    for (int shard : shards) {
+      try {
+        new ShardConnection(shard).close();
+      } catch (IOException e) {
+        return Protocol.ERROR_SHARD_TOKEN + " shard " + shard + " unreachable";
+      }
+    }
+    List<Integer> sources;
+    synchronized (routing) {
+      previous = ring;
+      ring = next;
+      sources = previous.getShards();
+    }
+    log.info("Resharding onto " + shards);
+    long giveUp = System.currentTimeMillis() + 10L * timeout;
+    try {
+      int moved = 0;
+      while (true) {
+        int remaining = 0;
+        for (int source : sources) {
+          Migration pass = migrate(source, next, System.currentTimeMillis() > giveUp);
+          moved += pass.moved;
+          remaining += pass.moved + pass.busy;
+        }
+        if (remaining == 0) break;
+        Thread.sleep(Math.max(1, timeout / 4));
+      }
+      log.info("Resharding done, " + moved + " files moved");
+      return Protocol.SHARDS_TOKEN + " " + join(shards);
+    } catch (IOException e) {
+      log.error("Resharding failed: " + e.getMessage());
+      return Protocol.ERROR_SHARD_TOKEN + " " + e.getMessage();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Protocol.ERROR_SHARD_TOKEN + " interrupted";
+    } finally {
+      synchronized (routing) {
+        previous = null;
+        routing.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * One pass over a shard's files, moving those the new ring assigns elsewhere
+   *
+   * @param source - shard to move files off
+   * @param next - new ring
+   * @param abandon - drop files that are still busy instead of waiting for them
+   */
+  private Migration migrate(int source, HashRing next, boolean abandon) throws IOException {
+    Migration pass = new Migration();
+    Map<Integer, ShardConnection> targets = new HashMap<>();
+    try (ShardConnection from = new ShardConnection(source)) {
+      String[] keys = from.request(Protocol.KEYS_TOKEN).split(" ");
+      for (int i = 1; i < keys.length; i++) {
+        String file = keys[i];
+        int target = next.owner(file);
+        if (target == source) continue;
+        String reply = from.request(Protocol.EXPORT_TOKEN + " " + file);
+        if (reply.equals(Protocol.BUSY_TOKEN)) {
+          if (!abandon) {
+            pass.busy++;
+            continue;
+          }
+          // an upload that never finished is cancelled on the source, its client has to start over
+          reply = from.request(Protocol.DROP_TOKEN + " " + file + " " + Protocol.BUSY_TOKEN);
+          if (reply.equals(Protocol.ACK_TOKEN)) {
+            log.warn(file + ": still busy on shard " + source + ", dropped");
+            continue;
+          }
+          if (!reply.startsWith(Protocol.ENTRY_TOKEN + " ")) {
+            throw new IOException(file + ": drop from shard " + source + " failed: " + reply);
+          }
+          // stored just now after all, move it like the others
+        }
+        if (!reply.startsWith(Protocol.ENTRY_TOKEN + " ")) continue;
+        ShardConnection to = targets.get(target);
+        if (to == null) {
+          to = new ShardConnection(target);
+          targets.put(target, to);
+        }
+        String imported =
+            to.request(
+                Protocol.IMPORT_TOKEN + reply.substring(Protocol.ENTRY_TOKEN.length()));
+        if (!imported.equals(Protocol.ACK_TOKEN)) {
+          throw new IOException(file + ": import into shard " + target + " failed: " + imported);
+        }
+        String dropped = from.request(Protocol.DROP_TOKEN + " " + file);
+        if (!dropped.equals(Protocol.ACK_TOKEN)) {
+          // undo the import rather than leave the file on two shards
+          String undone = to.request(Protocol.DROP_TOKEN + " " + file);
+          String left = undone.equals(Protocol.ACK_TOKEN) ? "" : ", also left on shard " + target;
+          throw new IOException(
+              file + ": drop from shard " + source + " failed: " + dropped + left);
+        }
+        log.debug(file + ": moved from shard " + source + " to " + target);
+        pass.moved++;
+      }
+    } finally {
+      for (ShardConnection to : targets.values()) {
+        to.close();
+      }
+    }
+    return pass;
+  }
+
+  private static String join(List<Integer> shards) {
+    StringBuilder joined = new StringBuilder();
+    for (int shard : shards) {
+      if (joined.length() > 0) joined.append(" ");
+      joined.append(shard);
+    }
+    return joined.toString();
+  }
+
+  /** Outcome of one migration pass over a shard */
+  private static final class Migration {
+    private int moved;
+    private int busy;
+  }
+
+  /** A client's connection to one shard, relaying everything the shard answers */
+  private final class Upstream implements Closeable {
+    private final Socket socket;
+    private final OutboundChannel channel;
+
+    private Upstream(int shard, Socket client) throws IOException {
+      this.socket = new Socket(InetAddress.getLocalHost(), shard);
+      this.socket.setTcpNoDelay(true);
+      this.channel = new OutboundChannel(socket);
+      connections.execute(
+          () -> {
+            try {
+              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+              String line;
+              while ((line = in.readLine()) != null) {
+                send(client, line);
+              }
+            } catch (IOException e) {
+              if (!socket.isClosed()) log.warn("Shard " + shard + " connection lost");
+            } finally {
+              // the next request to this shard opens a fresh connection
+              close();
+            }
+          });
+    }
+
+    @Override
+    public void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /** Request/reply connection to a shard for LIST and resharding */
+  private final class ShardConnection implements Closeable {
+    private final Socket socket;
+    private final PrintWriter out;
+    private final BufferedReader in;
+
+    private ShardConnection(int shard) throws IOException {
+      this.socket = new Socket(InetAddress.getLocalHost(), shard);
+      this.socket.setSoTimeout(timeout * 2);
+      this.out = new PrintWriter(socket.getOutputStream(), true);
+      this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    private String request(String line) throws IOException {
+      out.println(line);
+      String reply = in.readLine();
+      if (reply == null) throw new EOFException("Shard " + socket.getPort() + " closed");
+      return reply;
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  public static void main(String[] args) {
+    int port = Integer.parseInt(args[0]);
+    List<Integer> shards = new ArrayList<>();
+    for (String shard : args[1].split(",")) {
+      shards.add(Integer.parseInt(shard.trim()));
+    }
+    int timeout = Integer.parseInt(args[2]);
+    ShardRouter router = new ShardRouter(port, shards, timeout);
+    router.start();
+  }
+}
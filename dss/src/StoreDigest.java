@@ -0,0 +1,115 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bucketed summary of a set of stored files, compared by the controller's anti-entropy rounds to
+ * find where its index and a dstore's folder disagree without listing every file. Each file name
+ * hashes to one bucket, and a bucket's digest is the sum of the hashes of its files' names and
+ * sizes, so it does not depend on the order files are listed in. Only the files of buckets whose
+ * digests differ need comparing.
+ */
+public final class StoreDigest {
+  private static final int MIN_BUCKETS = 16;
+  private static final int MAX_BUCKETS = 4096;
+  private static final int FILES_PER_BUCKET = 16;
+  private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+  private StoreDigest() {}
+
+  /**
+   * @param files - number of files expected
+   * @return number of buckets to summarise them in
+   */
+  public static int bucketsFor(int files) {
+    int buckets = MIN_BUCKETS;
+    while (buckets < MAX_BUCKETS && buckets * FILES_PER_BUCKET < files) {
+      buckets <<= 1;
+    }
+    return buckets;
+  }
+
+  /**
+   * @param name - file name
+   * @param buckets - number of buckets
+   * @return bucket the file falls in
+   */
+  public static int bucketOf(String name, int buckets) {
+    return (int) Math.floorMod(nameHash(name), (long) buckets);
+  }
+
+  /**
+   * @param files - file names and sizes
+   * @param buckets - number of buckets
+   * @return digest of every bucket
+   */
+  public static long[] digest(Map<String, Long> files, int buckets) {
+    long[] digest = new long[buckets];
+    for (Map.Entry<String, Long> file : files.entrySet()) {
+      long h = nameHash(file.getKey());
+      digest[(int) Math.floorMod(h, (long) buckets)] += mix(h + file.getValue() * GOLDEN);
+    }
+    return digest;
+  }
+
+  /**
+   * @return buckets whose digests differ, in increasing order
+   */
+  public static List<Integer> differing(long[] expected, long[] actual) {
+    List<Integer> buckets = new ArrayList<>();
+    for (int i = 0; i < expected.length; i++) {
+      if (expected[i] != actual[i]) buckets.add(i);
+    }
+    return buckets;
+  }
+
+  /**
+   * @return space separated hex digests, as sent in DIGEST
+   */
+  public static String encode(long[] digest) {
+    StringBuilder encoded = new StringBuilder();
+    for (long bucket : digest) {
+      if (encoded.length() > 0) encoded.append(" ");
+      encoded.append(Long.toHexString(bucket));
+    }
+    return encoded.toString();
+  }
+
+  /**
+   * @param args - DIGEST message split on spaces
+   * @return digest of every bucket
+   */
+  public static long[] decode(String[] args) {
+    long[] digest = new long[args.length - 1];
+    for (int i = 0; i < digest.length; i++) {
+      digest[i] = Long.parseUnsignedLong(args[i + 1], 16);
+    }
+    return digest;
+  }
+
+  private static long nameHash(String name) {
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      // every JRE ships MD5
+      throw new IllegalStateException(e);
+    }
+    byte[] digest = md5.digest(name.getBytes(StandardCharsets.UTF_8));
+    long h = 0;
+    for (int i = 0; i < 8; i++) {
+      h = (h << 8) | (digest[i] & 0xff);
+    }
+    return h;
+  }
+
+  // SplitMix64 finaliser, so sizes that differ by little still change the digest everywhere
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,203 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel. A single worker thread advances one bucket per tick and fires the timeouts
+ * whose deadline has passed, so any number of pending timeouts costs one thread and O(1) work to
+ * schedule or cancel.
+ *
+ * <p>New and cancelled timeouts are handed to the worker through lock-free queues; the buckets
+ * themselves are only ever touched by the worker. Tasks run on the worker thread and must not
+ * block, unless the wheel is given an executor to hand them to, in which case the worker only
+ * keeps the books.
+ */
+public class TimerWheel {
+  private static final int ST_PENDING = 0;
+  private static final int ST_CANCELLED = 1;
+  private static final int ST_EXPIRED = 2;
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final ConcurrentLinkedQueue<Timeout> added;
+  private final ConcurrentLinkedQueue<Timeout> cancelled;
+  private final long startTime;
+  private final Thread worker;
+  private final Executor executor;
+  private final ScreenLogger log = new ScreenLogger("TimerWheel");
+  private long tick;
+
+  /**
+   * @param tickMillis - resolution of the wheel
+   * @param buckets - number of buckets, rounded up to a power of two
+   */
+  public TimerWheel(long tickMillis, int buckets) {
+    this(tickMillis, buckets, Runnable::run);
+  }
+
+  /**
+   * @param tickMillis - resolution of the wheel
+   * @param buckets - number of buckets, rounded up to a power of two
+   * @param executor - runs expired tasks off the wheel thread
+   */
+  public TimerWheel(long tickMillis, int buckets, Executor executor) {
+    this.executor = executor;
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    int size = buckets <= 1 ? 1 : Integer.highestOneBit(buckets - 1) << 1;
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+    this.added = new ConcurrentLinkedQueue<>();
+    this.cancelled = new ConcurrentLinkedQueue<>();
+    this.startTime = System.nanoTime();
+    this.worker = new Thread(this::run, "timer-wheel");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * Run a task once the delay has elapsed, unless cancelled first
+   *
+   * @param task - task to run once expired
+   * @param delay - delay in milliseconds
+   * @return handle for cancelling the timeout
+   */
+  public Timeout schedule(Runnable task, long delay) {
+    long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay);
+    Timeout timeout = new Timeout(task, deadline);
+    added.add(timeout);
+    return timeout;
+  }
+
+  public void stop() {
+    worker.interrupt();
+  }
+
+  private void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      long deadline = tickNanos * (tick + 1);
+      long sleepNanos = deadline - (System.nanoTime() - startTime);
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      removeCancelled();
+      transferAdded();
+      wheel[(int) (tick & mask)].expire(deadline);
+      tick++;
+    }
+  }
+
+  private void transferAdded() {
+    Timeout timeout;
+    while ((timeout = added.poll()) != null) {
+      if (timeout.state.get() != ST_PENDING) continue;
+      long ticks = Math.max(timeout.deadline / tickNanos, tick);
+      timeout.remainingRounds = (ticks - tick) / wheel.length;
+      wheel[(int) (ticks & mask)].add(timeout);
+    }
+  }
+
+  private void removeCancelled() {
+    Timeout timeout;
+    while ((timeout = cancelled.poll()) != null) {
+      if (timeout.bucket != null) timeout.bucket.remove(timeout);
+    }
+  }
+
+  /** Handle of a scheduled task */
+  public final class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(ST_PENDING);
+    private long remainingRounds;
+    private Bucket bucket;
+    private Timeout next;
+    private Timeout prev;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * @return true if the task will no longer run
+     */
+    public boolean cancel() {
+      if (!state.compareAndSet(ST_PENDING, ST_CANCELLED)) return false;
+      cancelled.add(this);
+      return true;
+    }
+
+    private void expire() {
+      if (!state.compareAndSet(ST_PENDING, ST_EXPIRED)) return;
+      try {
+        executor.execute(this::runTask);
+      } catch (RejectedExecutionException e) {
+        log.error("Timeout task rejected: " + e);
+      }
+    }
+
+    private void runTask() {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        log.error("Timeout task failed: " + e);
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /** Intrusive doubly linked list of timeouts, only accessed by the worker thread */
+  private static final class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    private void add(Timeout timeout) {
+      timeout.bucket = this;
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    private void expire(long deadline) {
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.remainingRounds <= 0) {
+          remove(timeout);
+          if (timeout.deadline <= deadline) {
+            timeout.expire();
+          }
+        } else if (timeout.state.get() == ST_CANCELLED) {
+          remove(timeout);
+        } else {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+
+    private void remove(Timeout timeout) {
+      if (timeout.bucket != this) return;
+      if (timeout.prev != null) timeout.prev.next = timeout.next;
+      else head = timeout.next;
+      if (timeout.next != null) timeout.next.prev = timeout.prev;
+      else tail = timeout.prev;
+      timeout.next = timeout.prev = null;
+      timeout.bucket = null;
+    }
+  }
+}
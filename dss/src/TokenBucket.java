@@ -0,0 +1,59 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket bandwidth shaper. Tokens are bytes, refilled continuously at the configured rate
+ * with at most one second of burst. A rate of zero or less disables shaping.
+ */
+public class TokenBucket {
+  private final long rate;
+  private final long capacity;
+  private long tokens;
+  private long lastRefill;
+
+  /**
+   * @param rate - bytes per second, 0 for unlimited
+   */
+  public TokenBucket(long rate) {
+    this.rate = rate;
+    this.capacity = Math.max(rate, 1);
+    this.tokens = capacity;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Block until the given number of bytes may be sent
+   *
+   * @param bytes - bytes about to be transferred
+   */
+  public void acquire(long bytes) throws InterruptedException {
+    if (rate <= 0) return;
+    while (bytes > 0) {
+      long granted;
+      long waitNanos;
+      synchronized (this) {
+        refill();
+        granted = Math.min(bytes, tokens);
+        tokens -= granted;
+        long missing = Math.min(bytes - granted, capacity);
+        waitNanos = missing > 0 ? TimeUnit.SECONDS.toNanos(missing) / rate : 0;
+      }
+      bytes -= granted;
+      if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  public boolean isLimited() {
+    return rate > 0;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    // a full bucket takes at most a second to earn, capping elapsed keeps the product in range
+    long elapsed = Math.min(now - lastRefill, TimeUnit.SECONDS.toNanos(1));
+    long earned = elapsed * rate / TimeUnit.SECONDS.toNanos(1);
+    if (earned > 0) {
+      tokens = Math.min(capacity, tokens + earned);
+      lastRefill = now;
+    }
+  }
+}
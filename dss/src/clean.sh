@@ -1 +1 @@
-rm Controller.class DStore.class ScreenLogger.class Protocol.class
+rm Controller.class DStore.class ScreenLogger.class Protocol.class OutboundChannel.class LockStripes.class TimerWheel.class PendingOperation.class LineReader.class TokenBucket.class AdmissionControl.class MultipartUpload.class ContentIndex.class CompressedFile.class ControllerGroup.class HashRing.class ShardRouter.class StoreDigest.class MappedFileCache.class InlineCache.class DstorePool.class DedupClient.class ParallelDownloader.class MultipartClient.class InlineClient.class LockStripesBench.class ReadPathBench.class FailoverCheck.class
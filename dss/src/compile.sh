@@ -1,2 +1,2 @@
-javac Controller.java Dstore.java ScreenLogger.java Protocol.java
+javac Controller.java Dstore.java ScreenLogger.java Protocol.java OutboundChannel.java LockStripes.java TimerWheel.java PendingOperation.java LineReader.java TokenBucket.java AdmissionControl.java MultipartUpload.java ContentIndex.java CompressedFile.java ControllerGroup.java HashRing.java ShardRouter.java StoreDigest.java MappedFileCache.java InlineCache.java DstorePool.java DedupClient.java ParallelDownloader.java MultipartClient.java InlineClient.java LockStripesBench.java ReadPathBench.java FailoverCheck.java
 javac -cp client.jar ClientMain.java